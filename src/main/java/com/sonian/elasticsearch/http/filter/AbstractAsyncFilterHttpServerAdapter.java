@@ -0,0 +1,33 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter;
+
+import org.elasticsearch.http.HttpChannel;
+import org.elasticsearch.http.HttpRequest;
+
+/**
+ * Base class for asynchronous filters, implements the synchronous filter contract on top of
+ * {@link #filterAsync(HttpRequest, HttpChannel, FilterCallback)}.
+ *
+ * @author imotov
+ */
+public abstract class AbstractAsyncFilterHttpServerAdapter implements AsyncFilterHttpServerAdapter {
+
+    @Override
+    public void doFilter(HttpRequest request, HttpChannel channel, FilterChain filterChain) {
+        ChainFilterCallback.filterAsync(this, request, channel, filterChain);
+    }
+}
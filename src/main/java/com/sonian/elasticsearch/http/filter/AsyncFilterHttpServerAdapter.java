@@ -0,0 +1,37 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter;
+
+import org.elasticsearch.http.HttpChannel;
+import org.elasticsearch.http.HttpRequest;
+
+/**
+ * A filter that can suspend the filter chain while it waits for I/O, such as a lookup in an index,
+ * without blocking the thread that dispatched the request. {@link FilterChainManager} calls
+ * {@link #filterAsync(HttpRequest, HttpChannel, FilterCallback)} instead of
+ * {@link #doFilter(HttpRequest, HttpChannel, FilterChain)} for such filters, see
+ * {@link AbstractAsyncFilterHttpServerAdapter}.
+ *
+ * @author imotov
+ */
+public interface AsyncFilterHttpServerAdapter extends FilterHttpServerAdapter {
+
+    /**
+     * Starts filtering the request and returns, the chain is resumed with the callback once the
+     * filter is done
+     */
+    void filterAsync(HttpRequest request, HttpChannel channel, FilterCallback callback);
+}
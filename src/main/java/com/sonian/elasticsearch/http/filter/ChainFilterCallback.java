@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.http.HttpChannel;
+import org.elasticsearch.http.HttpRequest;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resumes the chain at the next filter once the asynchronous filter is done
+ *
+ * @author imotov
+ */
+class ChainFilterCallback implements FilterCallback {
+
+    private static final ESLogger logger = Loggers.getLogger(ChainFilterCallback.class);
+
+    private final FilterChain next;
+
+    private final HttpChannel channel;
+
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    ChainFilterCallback(FilterChain next, HttpChannel channel) {
+        this.next = next;
+        this.channel = channel;
+    }
+
+    /**
+     * Calls the asynchronous filter with a callback that resumes the chain at the next filter. Exceptions
+     * thrown by the filter before it resumes the chain are sent to the client.
+     */
+    static void filterAsync(AsyncFilterHttpServerAdapter filter, HttpRequest request, HttpChannel channel, FilterChain next) {
+        ChainFilterCallback callback = new ChainFilterCallback(next, channel);
+        try {
+            filter.filterAsync(request, channel, callback);
+        } catch (RuntimeException e) {
+            // Exceptions thrown by the rest of the chain are propagated as for synchronous filters
+            if (!callback.fail(e)) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void doFilter(HttpRequest request, HttpChannel channel) {
+        if (!completed.compareAndSet(false, true)) {
+            throw new IllegalStateException("Filter chain is already resumed");
+        }
+        next.doFilter(request, channel);
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+        fail(t);
+    }
+
+    private boolean fail(Throwable t) {
+        if (!completed.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            channel.sendResponse(new BytesRestResponse(channel, t));
+        } catch (IOException e) {
+            logger.warn("Failed to send failure response", e);
+            channel.sendResponse(new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter;
+
+import org.elasticsearch.http.HttpServerAdapter;
+
+/**
+ * Transport that can dispatch requests received by different connectors to different adapters
+ *
+ * @author imotov
+ */
+public interface ConnectorAwareHttpServerTransport {
+
+    /**
+     * Sets the adapter for requests received by the connector with the given name. Requests received
+     * by other connectors are dispatched to the default adapter.
+     */
+    void httpServerAdapter(String connectorName, HttpServerAdapter httpServerAdapter);
+}
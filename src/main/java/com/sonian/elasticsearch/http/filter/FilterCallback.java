@@ -0,0 +1,32 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter;
+
+import org.elasticsearch.http.HttpChannel;
+import org.elasticsearch.http.HttpRequest;
+
+/**
+ * Resumes the filter chain suspended by an {@link AsyncFilterHttpServerAdapter}. The filter calls
+ * {@link #doFilter(HttpRequest, HttpChannel)} to pass the request to the rest of the chain, or
+ * {@link #onFailure(Throwable)} to answer the request with an error. A filter that answers the request
+ * itself doesn't need to call either. The callback can be called on any thread, but only once.
+ *
+ * @author imotov
+ */
+public interface FilterCallback extends FilterChain {
+
+    void onFailure(Throwable t);
+}
@@ -18,45 +18,256 @@ package com.sonian.elasticsearch.http.filter;
 import org.elasticsearch.http.HttpChannel;
 import org.elasticsearch.http.HttpRequest;
 import org.elasticsearch.http.HttpServerAdapter;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Sets.newHashSet;
 
 /**
+ * Passes requests through a chain of filters to the http server adapter.
+ * <p/>
+ * The chain is built once as an immutable list of links, each link calls its filter with the next
+ * link as the rest of the chain, so dispatching a request doesn't allocate. Without filters requests
+ * are passed to the adapter directly. {@link AsyncFilterHttpServerAdapter}s get a callback that resumes
+ * the chain at the next link, this is the only allocation on the path of a request.
+ * <p/>
+ * Filters with a {@link FilterScope} only apply to some routes. A chain with just the filters that apply
+ * is built for each method and path pattern of the scopes, and the chain for a request is found with a
+ * single trie lookup. Requests that don't match any pattern go through the filters without a scope.
+ * <p/>
+ * With {@link FilterTimings} each link records the time spent in its filter, and channels wrapped by
+ * filters are wrapped once more to record the time spent sending the response. Time spent in the rest
+ * of the chain on the same thread is tracked in a thread local to calculate exclusive times.
+ *
  * @author imotov
  */
 public class FilterChainManager implements HttpServerAdapter {
 
-    private final FilterHttpServerAdapter[] filters;
+    private final FilterChain head;
 
-    private final HttpServerAdapter adapter;
+    private final HttpServerAdapter direct;
+
+    private final MethodPathTrie<FilterChain> routes;
 
     public FilterChainManager(FilterHttpServerAdapter[] filters, HttpServerAdapter adapter) {
-        this.filters = filters;
-        this.adapter = adapter;
+        this(filters, new FilterScope[filters.length], adapter);
+    }
+
+    /**
+     * Creates a chain of filters, scopes are parallel to filters, null scope means that the filter
+     * applies to all requests
+     */
+    public FilterChainManager(FilterHttpServerAdapter[] filters, FilterScope[] scopes, HttpServerAdapter adapter) {
+        this(filters, scopes, null, adapter);
+    }
+
+    /**
+     * Creates a chain of filters that records the time spent in each filter, timings can be null
+     * to disable the instrumentation
+     */
+    public FilterChainManager(FilterHttpServerAdapter[] filters, FilterScope[] scopes, FilterTimings timings,
+                              HttpServerAdapter adapter) {
+        List<FilterHttpServerAdapter> unscoped = newArrayList();
+        for (int i = 0; i < filters.length; i++) {
+            if (scopes[i] == null) {
+                unscoped.add(filters[i]);
+            }
+        }
+        this.head = compile(unscoped, adapter, timings);
+        MethodPathTrie<FilterChain> routes = new MethodPathTrie<FilterChain>();
+        Set<String> registered = newHashSet();
+        for (FilterScope scope : scopes) {
+            if (scope == null) {
+                continue;
+            }
+            for (RestRequest.Method method : scope.methods()) {
+                for (String path : scope.paths()) {
+                    if (!registered.add(method + " " + path)) {
+                        continue;
+                    }
+                    List<FilterHttpServerAdapter> routeFilters = newArrayList();
+                    for (int i = 0; i < filters.length; i++) {
+                        if (scopes[i] == null || scopes[i].matches(method, path)) {
+                            routeFilters.add(filters[i]);
+                        }
+                    }
+                    if (!routes.insert(method, path, compile(routeFilters, adapter, timings))) {
+                        throw new IllegalArgumentException("Ambiguous path " + path + " for method " + method);
+                    }
+                }
+            }
+        }
+        this.routes = registered.isEmpty() ? null : routes;
+        this.direct = unscoped.isEmpty() && this.routes == null ? adapter : null;
+    }
+
+    private static FilterChain compile(List<FilterHttpServerAdapter> filters, HttpServerAdapter adapter,
+                                       FilterTimings timings) {
+        FilterChain chain = new AdapterLink(adapter);
+        if (timings != null) {
+            chain = new TimedLink(chain, timings.dispatch(), upstreamTiming(filters, filters.size(), timings));
+        }
+        for (int i = filters.size() - 1; i >= 0; i--) {
+            FilterHttpServerAdapter filter = filters.get(i);
+            if (filter instanceof AsyncFilterHttpServerAdapter) {
+                chain = new AsyncFilterLink((AsyncFilterHttpServerAdapter) filter, chain);
+            } else {
+                chain = new FilterLink(filter, chain);
+            }
+            if (timings != null) {
+                chain = new TimedLink(chain, timings.timing(filter), upstreamTiming(filters, i, timings));
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * Returns the timing of channels that reach the link at the given position without being
+     * wrapped by the instrumentation, such channels were wrapped by the previous filter
+     */
+    private static FilterTiming upstreamTiming(List<FilterHttpServerAdapter> filters, int position, FilterTimings timings) {
+        return position == 0 ? timings.send() : timings.timing(filters.get(position - 1));
     }
 
     @Override
     public void dispatchRequest(HttpRequest request, HttpChannel channel) {
-        FilterChain filterChain = new FilterChainImpl();
-        filterChain.doFilter(request, channel);
+        if (direct != null) {
+            direct.dispatchRequest(request, channel);
+            return;
+        }
+        FilterChain chain = null;
+        if (routes != null) {
+            chain = routes.retrieve(request.method(), request.path());
+        }
+        if (chain == null) {
+            chain = head;
+        }
+        chain.doFilter(request, channel);
     }
 
-    private class FilterChainImpl implements FilterChain {
-        private final int currentFilter;
+    private static class FilterLink implements FilterChain {
+        private final FilterHttpServerAdapter filter;
+
+        private final FilterChain next;
 
-        FilterChainImpl() {
-            this(0);
+        FilterLink(FilterHttpServerAdapter filter, FilterChain next) {
+            this.filter = filter;
+            this.next = next;
         }
 
-        public FilterChainImpl(int currentFilter) {
-            this.currentFilter = currentFilter;
+        @Override
+        public void doFilter(HttpRequest request, HttpChannel channel) {
+            filter.doFilter(request, channel, next);
+        }
+    }
+
+    private static class AsyncFilterLink implements FilterChain {
+        private final AsyncFilterHttpServerAdapter filter;
+
+        private final FilterChain next;
+
+        AsyncFilterLink(AsyncFilterHttpServerAdapter filter, FilterChain next) {
+            this.filter = filter;
+            this.next = next;
         }
 
         @Override
         public void doFilter(HttpRequest request, HttpChannel channel) {
-            if (currentFilter < filters.length) {
-                filters[currentFilter].doFilter(request, channel, new FilterChainImpl(currentFilter + 1));
-            } else {
-                adapter.dispatchRequest(request, channel);
+            ChainFilterCallback.filterAsync(filter, request, channel, next);
+        }
+    }
+
+    /**
+     * Time spent in the rest of the chain that was called on the current thread, for requests and
+     * for responses
+     */
+    private static final ThreadLocal<long[]> NESTED_NANOS = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    private static final int REQUEST = 0;
+
+    private static final int RESPONSE = 1;
+
+    private static class TimedLink implements FilterChain {
+        private final FilterChain link;
+
+        private final FilterTiming timing;
+
+        private final FilterTiming upstreamTiming;
+
+        TimedLink(FilterChain link, FilterTiming timing, FilterTiming upstreamTiming) {
+            this.link = link;
+            this.timing = timing;
+            this.upstreamTiming = upstreamTiming;
+        }
+
+        @Override
+        public void doFilter(HttpRequest request, HttpChannel channel) {
+            if (!(channel instanceof TimedHttpChannel)) {
+                channel = new TimedHttpChannel(request, channel, upstreamTiming);
             }
+            long[] nested = NESTED_NANOS.get();
+            long outer = nested[REQUEST];
+            nested[REQUEST] = 0;
+            long startTime = System.nanoTime();
+            try {
+                link.doFilter(request, channel);
+            } finally {
+                long inclusive = System.nanoTime() - startTime;
+                timing.recordRequest(inclusive, inclusive - nested[REQUEST]);
+                nested[REQUEST] = outer + inclusive;
+            }
+        }
+    }
+
+    private static class TimedHttpChannel extends HttpChannel {
+        private final HttpChannel channel;
+
+        private final FilterTiming timing;
+
+        TimedHttpChannel(HttpRequest request, HttpChannel channel, FilterTiming timing) {
+            super(request);
+            this.channel = channel;
+            this.timing = timing;
+        }
+
+        @Override
+        public void sendResponse(RestResponse response) {
+            long[] nested = NESTED_NANOS.get();
+            long outer = nested[RESPONSE];
+            long outerRequest = nested[REQUEST];
+            nested[RESPONSE] = 0;
+            long startTime = System.nanoTime();
+            try {
+                channel.sendResponse(response);
+            } finally {
+                long inclusive = System.nanoTime() - startTime;
+                timing.recordResponse(inclusive, inclusive - nested[RESPONSE]);
+                nested[RESPONSE] = outer + inclusive;
+                // Responses sent while the request is dispatched don't count as exclusive time of the request
+                nested[REQUEST] = outerRequest + inclusive;
+            }
+        }
+    }
+
+    private static class AdapterLink implements FilterChain {
+        private final HttpServerAdapter adapter;
+
+        AdapterLink(HttpServerAdapter adapter) {
+            this.adapter = adapter;
+        }
+
+        @Override
+        public void doFilter(HttpRequest request, HttpChannel channel) {
+            adapter.dispatchRequest(request, channel);
         }
     }
 }
@@ -15,6 +15,7 @@
  */
 package com.sonian.elasticsearch.http.filter;
 
+import com.sonian.elasticsearch.http.filter.metrics.Histogram;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.collect.ImmutableList;
@@ -23,16 +24,21 @@ import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.transport.BoundTransportAddress;
 import org.elasticsearch.http.HttpInfo;
 import org.elasticsearch.http.HttpServerAdapter;
 import org.elasticsearch.http.HttpServerTransport;
 import org.elasticsearch.http.HttpStats;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Sets.newHashSet;
 
 /**
  * @author imotov
@@ -45,8 +51,14 @@ public class FilterHttpServerTransport extends AbstractLifecycleComponent<HttpSe
 
     private Map<String, FilterHttpServerAdapter> filterMap;
 
+    private Map<String, FilterScope> filterScopes;
+
+    private final FilterTimings filterTimings;
+
     private List<String> filterNames;
 
+    private Map<String, FilterHttpServerAdapter[]> connectorFilters;
+
     @Inject
     public FilterHttpServerTransport(Settings settings, @FilteredHttpServerTransport HttpServerTransport filteredHttpServerTransport,
                                      @Nullable Map<String, FilterHttpServerAdapterFactory> filterHttpServerAdapterFactoryMap) {
@@ -54,6 +66,7 @@ public class FilterHttpServerTransport extends AbstractLifecycleComponent<HttpSe
         this.filteredHttpServerTransport = filteredHttpServerTransport;
 
         MapBuilder<String, FilterHttpServerAdapter> filters = MapBuilder.newMapBuilder();
+        MapBuilder<String, FilterScope> filterScopes = MapBuilder.newMapBuilder();
 
         if (filterHttpServerAdapterFactoryMap != null) {
             Map<String, Settings> filtersSettings = componentSettings.getGroups("http_filter");
@@ -66,11 +79,22 @@ public class FilterHttpServerTransport extends AbstractLifecycleComponent<HttpSe
                     filterSettings = ImmutableSettings.Builder.EMPTY_SETTINGS;
                 }
                 filters.put(filterName, filterFactory.create(filterName, filterSettings));
+                FilterScope scope = FilterScope.scope(filterSettings);
+                if (scope != null) {
+                    filterScopes.put(filterName, scope);
+                }
             }
 
         }
 
         filterMap = filters.immutableMap();
+        this.filterScopes = filterScopes.immutableMap();
+        if (componentSettings.getAsBoolean("timing.enabled", false)) {
+            this.filterTimings = new FilterTimings(filterMap, componentSettings.getAsInt("timing.stripes",
+                    Math.min(Histogram.MAX_DEFAULT_STRIPES, EsExecutors.boundedNumberOfProcessors(settings))));
+        } else {
+            this.filterTimings = null;
+        }
 
         String[] filterNames = componentSettings.getAsArray("http_filter_chain");
         List<FilterHttpServerAdapter> filterList = newArrayList();
@@ -84,6 +108,28 @@ public class FilterHttpServerTransport extends AbstractLifecycleComponent<HttpSe
         }
         this.filters = filterList.toArray(new FilterHttpServerAdapter[filterList.size()]);
         this.filterNames = ImmutableList.copyOf(filterNames);
+
+        // Requests received by named jetty connectors can go through their own chains
+        MapBuilder<String, FilterHttpServerAdapter[]> connectorFilters = MapBuilder.newMapBuilder();
+        Settings connectorChains = componentSettings.getByPrefix("connector_filter_chain.");
+        Set<String> connectorNames = newHashSet();
+        for (String key : connectorChains.getAsMap().keySet()) {
+            // Arrays are stored as connector.0, connector.1, ...
+            int dot = key.indexOf('.');
+            connectorNames.add(dot < 0 ? key : key.substring(0, dot));
+        }
+        for (String connectorName : connectorNames) {
+            List<FilterHttpServerAdapter> connectorFilterList = newArrayList();
+            for (String filterName : connectorChains.getAsArray(connectorName)) {
+                FilterHttpServerAdapter filter = filters.get(filterName);
+                if (filter == null) {
+                    throw new IllegalArgumentException("Failed to find http_filter under name [" + filterName + "]");
+                }
+                connectorFilterList.add(filter);
+            }
+            connectorFilters.put(connectorName, connectorFilterList.toArray(new FilterHttpServerAdapter[connectorFilterList.size()]));
+        }
+        this.connectorFilters = connectorFilters.immutableMap();
     }
 
     @Override
@@ -102,6 +148,15 @@ public class FilterHttpServerTransport extends AbstractLifecycleComponent<HttpSe
     protected void doClose
             () throws ElasticsearchException {
         filteredHttpServerTransport.close();
+        for (FilterHttpServerAdapter filter : filterMap.values()) {
+            if (filter instanceof Closeable) {
+                try {
+                    ((Closeable) filter).close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close http_filter", e);
+                }
+            }
+        }
     }
 
     @Override
@@ -112,7 +167,7 @@ public class FilterHttpServerTransport extends AbstractLifecycleComponent<HttpSe
 
     @Override
     public HttpInfo info() {
-        return new HttpInfo(boundAddress(), 0);
+        return filteredHttpServerTransport.info();
     }
 
     @Override
@@ -125,7 +180,33 @@ public class FilterHttpServerTransport extends AbstractLifecycleComponent<HttpSe
     public void httpServerAdapter
             (HttpServerAdapter
                      httpServerAdapter) {
-        filteredHttpServerTransport.httpServerAdapter(new FilterChainManager(filters, httpServerAdapter));
+        filteredHttpServerTransport.httpServerAdapter(new FilterChainManager(filters, scopes(filters), filterTimings,
+                httpServerAdapter));
+        for (Map.Entry<String, FilterHttpServerAdapter[]> entry : connectorFilters.entrySet()) {
+            if (filteredHttpServerTransport instanceof ConnectorAwareHttpServerTransport) {
+                ((ConnectorAwareHttpServerTransport) filteredHttpServerTransport).httpServerAdapter(entry.getKey(),
+                        new FilterChainManager(entry.getValue(), scopes(entry.getValue()), filterTimings,
+                                httpServerAdapter));
+            } else {
+                logger.warn("Transport doesn't support connector filter chains, ignoring chain for connector [{}]", entry.getKey());
+            }
+        }
+    }
+
+    private FilterScope[] scopes(FilterHttpServerAdapter[] filters) {
+        FilterScope[] scopes = new FilterScope[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            for (Map.Entry<String, FilterHttpServerAdapter> entry : filterMap.entrySet()) {
+                if (entry.getValue() == filters[i]) {
+                    scopes[i] = filterScopes.get(entry.getKey());
+                }
+            }
+        }
+        return scopes;
+    }
+
+    public HttpServerTransport filteredHttpServerTransport() {
+        return filteredHttpServerTransport;
     }
 
     public List<String> filterNames() {
@@ -135,4 +216,18 @@ public class FilterHttpServerTransport extends AbstractLifecycleComponent<HttpSe
     public FilterHttpServerAdapter filter(String name) {
         return filterMap.get(name);
     }
+
+    /**
+     * Returns timings of filters or null if the time spent in filters is not recorded
+     */
+    public FilterTimings filterTimings() {
+        return filterTimings;
+    }
+
+    /**
+     * Returns the scope of the filter or null if the filter applies to all requests
+     */
+    public FilterScope filterScope(String name) {
+        return filterScopes.get(name);
+    }
 }
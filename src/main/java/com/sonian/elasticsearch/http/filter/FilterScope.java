@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * Methods and path patterns a filter applies to, configured in the <tt>apply_to</tt> section of the filter
+ * settings. Filters without the section apply to all requests.
+ *
+ * @author imotov
+ */
+public class FilterScope {
+
+    private final RestRequest.Method[] methods;
+
+    private final String[] paths;
+
+    private final MethodPathTrie<Boolean> patterns = new MethodPathTrie<Boolean>();
+
+    public FilterScope(String[] methods, String[] paths) {
+        this.methods = new RestRequest.Method[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            this.methods[i] = MethodPathTrie.method(methods[i]);
+        }
+        this.paths = paths;
+        for (RestRequest.Method method : this.methods) {
+            for (String path : paths) {
+                patterns.insert(method, path, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Returns the scope of the filter or null if the filter applies to all requests
+     */
+    public static FilterScope scope(Settings filterSettings) {
+        Settings scopeSettings = filterSettings.getByPrefix("apply_to.");
+        String[] paths = scopeSettings.getAsArray("path");
+        if (paths.length == 0) {
+            return null;
+        }
+        return new FilterScope(scopeSettings.getAsArray("method", new String[]{"GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS"}),
+                paths);
+    }
+
+    /**
+     * Returns true if the filter applies to requests matching the path. The path can be a pattern,
+     * in this case wildcards of the pattern only match wildcards of the scope.
+     */
+    public boolean matches(RestRequest.Method method, String path) {
+        return patterns.retrieve(method, path) != null;
+    }
+
+    public RestRequest.Method[] methods() {
+        return methods;
+    }
+
+    public String[] paths() {
+        return paths;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter;
+
+import com.sonian.elasticsearch.http.filter.metrics.Histogram;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * Time spent in a filter on the way to elasticsearch and in the channel the filter wrapped on the way
+ * back. Inclusive time covers the rest of the chain called on the same thread, exclusive time only
+ * covers the filter itself.
+ *
+ * @author imotov
+ */
+public class FilterTiming implements ToXContent {
+
+    private final String name;
+
+    private final Histogram requestInclusive;
+
+    private final Histogram requestExclusive;
+
+    private final Histogram responseInclusive;
+
+    private final Histogram responseExclusive;
+
+    public FilterTiming(String name, int stripes) {
+        this.name = name;
+        this.requestInclusive = new Histogram(stripes);
+        this.requestExclusive = new Histogram(stripes);
+        this.responseInclusive = new Histogram(stripes);
+        this.responseExclusive = new Histogram(stripes);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public void recordRequest(long inclusiveNanos, long exclusiveNanos) {
+        requestInclusive.record(inclusiveNanos);
+        requestExclusive.record(exclusiveNanos);
+    }
+
+    public void recordResponse(long inclusiveNanos, long exclusiveNanos) {
+        responseInclusive.record(inclusiveNanos);
+        responseExclusive.record(exclusiveNanos);
+    }
+
+    public Histogram.Snapshot requestInclusive() {
+        return requestInclusive.snapshot();
+    }
+
+    public Histogram.Snapshot requestExclusive() {
+        return requestExclusive.snapshot();
+    }
+
+    public Histogram.Snapshot responseInclusive() {
+        return responseInclusive.snapshot();
+    }
+
+    public Histogram.Snapshot responseExclusive() {
+        return responseExclusive.snapshot();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(name);
+        builder.startObject("request");
+        toXContent(builder, requestInclusive.snapshot(), requestExclusive.snapshot());
+        builder.endObject();
+        builder.startObject("response");
+        toXContent(builder, responseInclusive.snapshot(), responseExclusive.snapshot());
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+
+    private void toXContent(XContentBuilder builder, Histogram.Snapshot inclusive, Histogram.Snapshot exclusive) throws IOException {
+        builder.field("count", inclusive.count());
+        builder.startObject("inclusive_nanos");
+        snapshotToXContent(builder, inclusive);
+        builder.endObject();
+        builder.startObject("exclusive_nanos");
+        snapshotToXContent(builder, exclusive);
+        builder.endObject();
+    }
+
+    private void snapshotToXContent(XContentBuilder builder, Histogram.Snapshot snapshot) throws IOException {
+        builder.field("mean", snapshot.mean());
+        builder.field("p50", snapshot.percentile(50));
+        builder.field("p99", snapshot.percentile(99));
+        builder.field("max", snapshot.max());
+    }
+}
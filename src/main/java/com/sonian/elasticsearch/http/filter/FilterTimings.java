@@ -0,0 +1,88 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static org.elasticsearch.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * Timings of all filters of the transport. Besides filters there are two more entries:
+ * <tt>_dispatch</tt> is the time spent by elasticsearch on the dispatching thread and
+ * <tt>_send</tt> is the time spent by the transport writing responses.
+ *
+ * @author imotov
+ */
+public class FilterTimings implements ToXContent {
+
+    public static final String DISPATCH = "_dispatch";
+
+    public static final String SEND = "_send";
+
+    private final Map<String, FilterTiming> timings = newLinkedHashMap();
+
+    private final Map<FilterHttpServerAdapter, FilterTiming> filterTimings = new IdentityHashMap<FilterHttpServerAdapter, FilterTiming>();
+
+    private final FilterTiming dispatch;
+
+    private final FilterTiming send;
+
+    public FilterTimings(Map<String, FilterHttpServerAdapter> filters, int stripes) {
+        for (Map.Entry<String, FilterHttpServerAdapter> entry : filters.entrySet()) {
+            FilterTiming timing = new FilterTiming(entry.getKey(), stripes);
+            timings.put(entry.getKey(), timing);
+            filterTimings.put(entry.getValue(), timing);
+        }
+        this.dispatch = new FilterTiming(DISPATCH, stripes);
+        this.send = new FilterTiming(SEND, stripes);
+        timings.put(DISPATCH, dispatch);
+        timings.put(SEND, send);
+    }
+
+    public FilterTiming timing(String name) {
+        return timings.get(name);
+    }
+
+    public FilterTiming timing(FilterHttpServerAdapter filter) {
+        return filterTimings.get(filter);
+    }
+
+    public FilterTiming dispatch() {
+        return dispatch;
+    }
+
+    public FilterTiming send() {
+        return send;
+    }
+
+    public Collection<FilterTiming> timings() {
+        return timings.values();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        for (FilterTiming timing : timings.values()) {
+            timing.toXContent(builder, params);
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.path.PathTrie;
+import org.elasticsearch.rest.RestRequest;
+
+import java.util.EnumMap;
+import java.util.Locale;
+
+/**
+ * Maps http method and elasticsearch path patterns such as <tt>/{index}/_search</tt> to values.
+ * Paths are matched the same way as by the elasticsearch rest controller.
+ *
+ * @author imotov
+ */
+public class MethodPathTrie<T> {
+
+    private final EnumMap<RestRequest.Method, PathTrie<T>> tries =
+            new EnumMap<RestRequest.Method, PathTrie<T>>(RestRequest.Method.class);
+
+    public MethodPathTrie() {
+        for (RestRequest.Method method : RestRequest.Method.values()) {
+            tries.put(method, new PathTrie<T>());
+        }
+    }
+
+    /**
+     * Registers the value for the given method and path
+     *
+     * @return false if the path is ambiguous and the value couldn't be registered
+     */
+    public boolean insert(RestRequest.Method method, String path, T value) {
+        try {
+            tries.get(method).insert(path, value);
+            return true;
+        } catch (AssertionError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Registers the value for the given method name and path
+     *
+     * @return false if the path is ambiguous and the value couldn't be registered
+     */
+    public boolean insert(String method, String path, T value) {
+        return insert(method(method), path, value);
+    }
+
+    public T retrieve(RestRequest.Method method, String path) {
+        return tries.get(method).retrieve(path);
+    }
+
+    public static RestRequest.Method method(String method) {
+        try {
+            return RestRequest.Method.valueOf(method.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ElasticsearchIllegalArgumentException("Unknown method name [" + method + "]");
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter.limit;
+
+import com.sonian.elasticsearch.http.filter.FilterChain;
+import com.sonian.elasticsearch.http.filter.FilterHttpServerAdapter;
+import com.sonian.elasticsearch.http.filter.MethodPathTrie;
+import org.elasticsearch.common.Classes;
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.assistedinject.Assisted;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.http.HttpChannel;
+import org.elasticsearch.http.HttpRequest;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+
+/**
+ * Limits the number of concurrent requests for each class of routes, such as searches, bulk requests
+ * and admin requests. The limits adapt to observed round-trip times, see {@link GradientLimit}. Requests
+ * above the limit are rejected with <tt>503 Service Unavailable</tt> before they reach elasticsearch.
+ * Requests that don't belong to any route class are not limited.
+ *
+ * @author imotov
+ */
+public class ConcurrencyLimitFilterHttpServerAdapter implements FilterHttpServerAdapter, ToXContent {
+
+    private static final String[] SEARCH_PATHS = new String[]{
+            "/_search", "/{index}/_search", "/{index}/{type}/_search",
+            "/_search/scroll", "/_search/scroll/{scroll_id}",
+            "/_msearch", "/{index}/_msearch", "/{index}/{type}/_msearch",
+            "/_count", "/{index}/_count", "/{index}/{type}/_count",
+            "/_mget", "/{index}/_mget", "/{index}/{type}/_mget"
+    };
+
+    private static final String[] BULK_PATHS = new String[]{
+            "/_bulk", "/{index}/_bulk", "/{index}/{type}/_bulk"
+    };
+
+    private static final String[] ADMIN_PATHS = new String[]{
+            "/_cluster/state", "/_cluster/settings", "/_cluster/reroute", "/_nodes", "/_nodes/stats",
+            "/_refresh", "/{index}/_refresh", "/_flush", "/{index}/_flush", "/_optimize", "/{index}/_optimize",
+            "/_stats", "/{index}/_stats", "/_segments", "/{index}/_segments", "/{index}/_settings", "/{index}/_mapping",
+            "/{index}/{type}/_mapping", "/_aliases", "/{index}/_aliases"
+    };
+
+    private final ESLogger logger;
+
+    private final MethodPathTrie<GradientLimit> routes = new MethodPathTrie<GradientLimit>();
+
+    private final List<GradientLimit> limits;
+
+    @Inject
+    public ConcurrencyLimitFilterHttpServerAdapter(Settings settings, @Assisted String name, @Assisted Settings filterSettings) {
+        this.logger = Loggers.getLogger(Classes.getPackageName(getClass()), settings);
+        // Limit settings of the filter are defaults for all route classes
+        Settings defaults = filterSettings;
+        List<GradientLimit> limits = newArrayList();
+        Map<String, Settings> routeGroups = filterSettings.getGroups("routes");
+        if (routeGroups.isEmpty()) {
+            limits.add(register("search", new String[]{"GET", "POST"}, SEARCH_PATHS, defaults));
+            limits.add(register("bulk", new String[]{"POST", "PUT"}, BULK_PATHS, defaults));
+            limits.add(register("admin", new String[]{"GET", "POST", "PUT", "DELETE"}, ADMIN_PATHS, defaults));
+        } else {
+            for (Map.Entry<String, Settings> route : routeGroups.entrySet()) {
+                Settings routeSettings = ImmutableSettings.settingsBuilder().put(defaults).put(route.getValue()).build();
+                limits.add(register(route.getKey(),
+                        routeSettings.getAsArray("method", new String[]{"GET", "POST", "PUT", "DELETE", "HEAD"}),
+                        routeSettings.getAsArray("path"), routeSettings));
+            }
+        }
+        this.limits = ImmutableList.copyOf(limits);
+    }
+
+    private GradientLimit register(String name, String[] methods, String[] paths, Settings limitSettings) {
+        GradientLimit limit = new GradientLimit(name, limitSettings);
+        for (String method : methods) {
+            for (String path : paths) {
+                if (!routes.insert(method.trim(), path, limit)) {
+                    logger.warn("Ambiguous path " + path + " for method " + method);
+                }
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Returns the limit of the route class the request belongs to or null if the request isn't limited
+     */
+    public GradientLimit limit(HttpRequest request) {
+        return routes.retrieve(request.method(), request.path());
+    }
+
+    public List<GradientLimit> limits() {
+        return limits;
+    }
+
+    @Override
+    public void doFilter(HttpRequest request, HttpChannel channel, FilterChain filterChain) {
+        GradientLimit limit = limit(request);
+        if (limit == null) {
+            filterChain.doFilter(request, channel);
+            return;
+        }
+        if (!limit.tryAcquire()) {
+            reject(channel, limit);
+            return;
+        }
+        LimitHttpChannel limitChannel = new LimitHttpChannel(request, channel, limit);
+        try {
+            filterChain.doFilter(request, limitChannel);
+        } catch (RuntimeException e) {
+            limitChannel.release(true);
+            throw e;
+        }
+    }
+
+    private void reject(HttpChannel channel, GradientLimit limit) {
+        try {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject()
+                    .field("error", "Concurrency limit of [" + limit.name() + "] requests is reached")
+                    .field("status", RestStatus.SERVICE_UNAVAILABLE.getStatus())
+                    .endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.SERVICE_UNAVAILABLE, builder));
+        } catch (IOException e) {
+            logger.warn("Failed to send response", e);
+            channel.sendResponse(new BytesRestResponse(RestStatus.SERVICE_UNAVAILABLE));
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("routes");
+        for (GradientLimit limit : limits) {
+            limit.toXContent(builder, params);
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    private static class LimitHttpChannel extends HttpChannel {
+        private final HttpChannel channel;
+
+        private final GradientLimit limit;
+
+        private final int inFlightAtStart;
+
+        private final long startTime;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        LimitHttpChannel(HttpRequest request, HttpChannel channel, GradientLimit limit) {
+            super(request);
+            this.channel = channel;
+            this.limit = limit;
+            this.inFlightAtStart = limit.inFlight();
+            this.startTime = System.nanoTime();
+        }
+
+        @Override
+        public void sendResponse(RestResponse response) {
+            try {
+                channel.sendResponse(response);
+            } finally {
+                release(response.status() == null || response.status().getStatus() >= 500);
+            }
+        }
+
+        void release(boolean dropped) {
+            if (released.compareAndSet(false, true)) {
+                limit.release(System.nanoTime() - startTime, inFlightAtStart, dropped);
+            }
+        }
+    }
+}
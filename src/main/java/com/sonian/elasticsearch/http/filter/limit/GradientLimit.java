@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter.limit;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrency limit that adapts to observed round-trip times.
+ * <p/>
+ * The limit follows the gradient between the long-term average round-trip time, which approximates the
+ * latency without queueing, and the short-term average. While the short-term latency stays within
+ * <tt>tolerance</tt> of the long-term latency the limit grows by about the square root of the limit per
+ * sample. When requests start queueing and the short-term latency goes up the limit shrinks
+ * proportionally. Server errors reduce the limit by <tt>backoff</tt>.
+ *
+ * @author imotov
+ */
+public class GradientLimit implements ToXContent {
+
+    private final String name;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double tolerance;
+
+    private final double smoothing;
+
+    private final double backoff;
+
+    private final double shortWindow;
+
+    private final double longWindow;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final CounterMetric accepted = new CounterMetric();
+
+    private final CounterMetric rejected = new CounterMetric();
+
+    private volatile double limit;
+
+    private double shortRttNanos;
+
+    private double longRttNanos;
+
+    public GradientLimit(String name, Settings limitSettings) {
+        this.name = name;
+        this.minLimit = limitSettings.getAsInt("min_limit", 1);
+        this.maxLimit = limitSettings.getAsInt("max_limit", 1000);
+        this.tolerance = limitSettings.getAsDouble("tolerance", 1.5);
+        this.smoothing = limitSettings.getAsDouble("smoothing", 0.2);
+        this.backoff = limitSettings.getAsDouble("backoff", 0.9);
+        this.shortWindow = limitSettings.getAsInt("short_window", 10);
+        this.longWindow = limitSettings.getAsInt("long_window", 600);
+        this.limit = Math.max(minLimit, Math.min(maxLimit, limitSettings.getAsInt("initial_limit", 20)));
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Takes a slot for a new request, returns false if the limit is reached
+     */
+    public boolean tryAcquire() {
+        if (inFlight.incrementAndGet() > (int) limit) {
+            inFlight.decrementAndGet();
+            rejected.inc();
+            return false;
+        }
+        accepted.inc();
+        return true;
+    }
+
+    /**
+     * Releases the slot of a completed request and updates the limit
+     *
+     * @param rttNanos          time between acquiring the slot and sending the response
+     * @param inFlightAtStart   number of requests in flight when the request was started
+     * @param dropped           true if the request failed because the node is overloaded
+     */
+    public void release(long rttNanos, int inFlightAtStart, boolean dropped) {
+        inFlight.decrementAndGet();
+        update(rttNanos, inFlightAtStart, dropped);
+    }
+
+    synchronized void update(long rttNanos, int inFlightAtStart, boolean dropped) {
+        if (dropped) {
+            limit = Math.max(minLimit, limit * backoff);
+            return;
+        }
+        double rtt = Math.max(1, rttNanos);
+        if (longRttNanos == 0) {
+            shortRttNanos = rtt;
+            longRttNanos = rtt;
+        } else {
+            shortRttNanos += (rtt - shortRttNanos) / shortWindow;
+            longRttNanos += (rtt - longRttNanos) / longWindow;
+        }
+        // Under sustained load the long-term average drifts up, pull it back once the latency improves
+        if (longRttNanos > 2 * shortRttNanos) {
+            longRttNanos *= 0.95;
+        }
+        // Don't grow the limit if it's not used
+        if (inFlightAtStart < limit / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRttNanos / shortRttNanos));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        newLimit = limit * (1 - smoothing) + newLimit * smoothing;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    public int limit() {
+        return (int) limit;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public long accepted() {
+        return accepted.count();
+    }
+
+    public long rejected() {
+        return rejected.count();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        double shortRtt;
+        double longRtt;
+        synchronized (this) {
+            shortRtt = shortRttNanos;
+            longRtt = longRttNanos;
+        }
+        builder.startObject(name);
+        builder.field("limit", limit());
+        builder.field("in_flight", inFlight());
+        builder.field("accepted", accepted.count());
+        builder.field("rejected", rejected.count());
+        builder.field("short_rtt_in_millis", TimeValue.timeValueNanos((long) shortRtt).millis());
+        builder.field("long_rtt_in_millis", TimeValue.timeValueNanos((long) longRtt).millis());
+        builder.endObject();
+        return builder;
+    }
+}
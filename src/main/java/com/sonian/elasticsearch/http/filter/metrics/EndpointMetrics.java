@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter.metrics;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * Latency and throughput of requests matching a single method and path pattern
+ *
+ * @author imotov
+ */
+public class EndpointMetrics implements ToXContent {
+
+    private final String name;
+
+    private final Histogram latency;
+
+    private final CounterMetric count = new CounterMetric();
+
+    private final CounterMetric failures = new CounterMetric();
+
+    private final long startTime;
+
+    public EndpointMetrics(String name, int stripes) {
+        this.name = name;
+        this.latency = new Histogram(stripes);
+        this.startTime = System.currentTimeMillis();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Records a completed request
+     *
+     * @param latencyMicros time between receiving the request and sending the response in microseconds
+     * @param failed true if the response was a server error
+     */
+    public void record(long latencyMicros, boolean failed) {
+        latency.record(latencyMicros);
+        count.inc();
+        if (failed) {
+            failures.inc();
+        }
+    }
+
+    public Histogram.Snapshot snapshot() {
+        return latency.snapshot();
+    }
+
+    public long count() {
+        return count.count();
+    }
+
+    public long failures() {
+        return failures.count();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        Histogram.Snapshot snapshot = latency.snapshot();
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        builder.startObject(name);
+        builder.field("count", snapshot.count());
+        builder.field("failures", failures.count());
+        builder.field("rate_per_sec", snapshot.count() * 1000.0 / elapsed);
+        builder.startObject("latency_micros");
+        builder.field("mean", snapshot.mean());
+        builder.field("p50", snapshot.percentile(50));
+        builder.field("p90", snapshot.percentile(90));
+        builder.field("p99", snapshot.percentile(99));
+        builder.field("p999", snapshot.percentile(99.9));
+        builder.field("max", snapshot.max());
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter.metrics;
+
+import com.sonian.elasticsearch.http.filter.FilterChain;
+import com.sonian.elasticsearch.http.filter.FilterHttpServerAdapter;
+import com.sonian.elasticsearch.http.filter.MethodPathTrie;
+import org.elasticsearch.common.Classes;
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.assistedinject.Assisted;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.http.HttpChannel;
+import org.elasticsearch.http.HttpRequest;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * Records latency histograms for each method and path pattern
+ *
+ * @author imotov
+ */
+public class MetricsFilterHttpServerAdapter implements FilterHttpServerAdapter, ToXContent {
+
+    private static final String[] DEFAULT_PATHS = new String[]{
+            "/", "/_bulk", "/{index}/_bulk", "/{index}/{type}/_bulk",
+            "/_search", "/{index}/_search", "/{index}/{type}/_search",
+            "/_search/scroll", "/_search/scroll/{scroll_id}",
+            "/_msearch", "/{index}/_msearch", "/{index}/{type}/_msearch",
+            "/_count", "/{index}/_count", "/{index}/{type}/_count",
+            "/_mget", "/{index}/_mget", "/{index}/{type}/_mget",
+            "/{index}/{type}", "/{index}/{type}/{id}", "/{index}/{type}/{id}/_update",
+            "/_cluster/health", "/_cluster/state", "/_nodes", "/_nodes/stats"
+    };
+
+    private static final String[] DEFAULT_METHODS = new String[]{"GET", "POST", "PUT", "DELETE", "HEAD"};
+
+    private final ESLogger logger;
+
+    private final MethodPathTrie<EndpointMetrics> endpoints = new MethodPathTrie<EndpointMetrics>();
+
+    private final EnumMap<RestRequest.Method, EndpointMetrics> otherEndpoints =
+            new EnumMap<RestRequest.Method, EndpointMetrics>(RestRequest.Method.class);
+
+    private final List<EndpointMetrics> allEndpoints;
+
+    @Inject
+    public MetricsFilterHttpServerAdapter(Settings settings, @Assisted String name, @Assisted Settings filterSettings) {
+        this.logger = Loggers.getLogger(Classes.getPackageName(getClass()), settings);
+        int stripes = filterSettings.getAsInt("stripes",
+                Math.min(Histogram.MAX_DEFAULT_STRIPES, EsExecutors.boundedNumberOfProcessors(settings)));
+
+        Map<String, EndpointMetrics> metrics = newLinkedHashMap();
+        Map<String, Settings> endpointGroups = filterSettings.getGroups("endpoints");
+        if (endpointGroups.isEmpty()) {
+            for (String method : DEFAULT_METHODS) {
+                for (String path : DEFAULT_PATHS) {
+                    register(metrics, method, path, stripes);
+                }
+            }
+        } else {
+            for (Settings endpoint : endpointGroups.values()) {
+                for (String path : endpoint.getAsArray("path")) {
+                    for (String method : endpoint.getAsArray("method", DEFAULT_METHODS)) {
+                        register(metrics, method, path, stripes);
+                    }
+                }
+            }
+        }
+
+        List<EndpointMetrics> all = newArrayList(metrics.values());
+        for (RestRequest.Method method : RestRequest.Method.values()) {
+            EndpointMetrics other = new EndpointMetrics(method.name() + " _other", stripes);
+            otherEndpoints.put(method, other);
+            all.add(other);
+        }
+        this.allEndpoints = ImmutableList.copyOf(all);
+    }
+
+    private void register(Map<String, EndpointMetrics> metrics, String method, String path, int stripes) {
+        String key = method.trim().toUpperCase(Locale.ROOT) + " " + path;
+        if (metrics.containsKey(key)) {
+            return;
+        }
+        EndpointMetrics endpointMetrics = new EndpointMetrics(key, stripes);
+        if (endpoints.insert(method, path, endpointMetrics)) {
+            metrics.put(key, endpointMetrics);
+        } else {
+            logger.warn("Ambiguous path " + path + " for method " + method);
+        }
+    }
+
+    public EndpointMetrics endpointMetrics(RestRequest.Method method, String path) {
+        EndpointMetrics metrics = endpoints.retrieve(method, path);
+        if (metrics == null) {
+            return otherEndpoints.get(method);
+        }
+        return metrics;
+    }
+
+    public List<EndpointMetrics> endpointMetrics() {
+        return allEndpoints;
+    }
+
+    @Override
+    public void doFilter(HttpRequest request, HttpChannel channel, FilterChain filterChain) {
+        EndpointMetrics metrics = endpointMetrics(request.method(), request.path());
+        filterChain.doFilter(request, new MetricsHttpChannel(request, channel, metrics, System.nanoTime()));
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("endpoints");
+        for (EndpointMetrics metrics : allEndpoints) {
+            if (metrics.count() > 0) {
+                metrics.toXContent(builder, params);
+            }
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    private static class MetricsHttpChannel extends HttpChannel {
+        private final HttpChannel channel;
+
+        private final EndpointMetrics metrics;
+
+        private final long startTime;
+
+        MetricsHttpChannel(HttpRequest request, HttpChannel channel, EndpointMetrics metrics, long startTime) {
+            super(request);
+            this.channel = channel;
+            this.metrics = metrics;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public void sendResponse(RestResponse response) {
+            try {
+                channel.sendResponse(response);
+            } finally {
+                boolean failed = response.status() == null || response.status().getStatus() >= 500;
+                metrics.record((System.nanoTime() - startTime) / 1000, failed);
+            }
+        }
+    }
+}
@@ -17,42 +17,242 @@ package com.sonian.elasticsearch.http.filter.timeout;
 
 import com.sonian.elasticsearch.http.filter.FilterChain;
 import com.sonian.elasticsearch.http.filter.FilterHttpServerAdapter;
+import com.sonian.elasticsearch.http.filter.MethodPathTrie;
 import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.Classes;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.inject.assistedinject.Assisted;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.netty.util.HashedWheelTimer;
+import org.elasticsearch.common.netty.util.Timeout;
+import org.elasticsearch.common.netty.util.TimerTask;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.http.HttpChannel;
 import org.elasticsearch.http.HttpRequest;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Enforces a deadline for each request. If elasticsearch doesn't respond before the deadline the client
+ * receives <tt>504 Gateway Timeout</tt> and the response that arrives later is discarded.
+ * <p/>
+ * The deadline is taken from the <tt>X-Request-Timeout</tt> header, the <tt>timeout</tt> parameter
+ * or the timeout of the route the request matches, in this order. Elasticsearch handles the
+ * <tt>timeout</tt> parameter itself for many requests and responds with partial results, so
+ * <tt>param_grace</tt> is added to it to give elasticsearch a chance to respond first.
+ * Requests without a deadline are passed through. All deadlines share a single hashed wheel timer.
+ *
  * @author imotov
  */
-public class TimeoutFilterHttpServerAdapter implements FilterHttpServerAdapter {
-    private static final String SLEEP_PARAM = "sleep";
+public class TimeoutFilterHttpServerAdapter implements FilterHttpServerAdapter, ToXContent, Closeable {
 
-    @Inject
-    public TimeoutFilterHttpServerAdapter(@Assisted String name, @Assisted Settings settings) {
+    private final ESLogger logger;
+
+    private final String header;
+
+    private final String param;
+
+    private final TimeValue paramGrace;
+
+    private final TimeValue defaultTimeout;
+
+    private final MethodPathTrie<TimeValue> routeTimeouts = new MethodPathTrie<TimeValue>();
 
+    private final HashedWheelTimer timer;
+
+    private final CounterMetric requests = new CounterMetric();
+
+    private final CounterMetric expired = new CounterMetric();
+
+    private final CounterMetric discarded = new CounterMetric();
+
+    @Inject
+    public TimeoutFilterHttpServerAdapter(Settings settings, @Assisted String name, @Assisted Settings filterSettings) {
+        this.logger = Loggers.getLogger(Classes.getPackageName(getClass()), settings);
+        this.header = filterSettings.get("header", "X-Request-Timeout");
+        this.param = filterSettings.get("param", "timeout");
+        this.paramGrace = filterSettings.getAsTime("param_grace", TimeValue.timeValueSeconds(1));
+        this.defaultTimeout = filterSettings.getAsTime("default_timeout", null);
+        for (Settings route : filterSettings.getGroups("routes").values()) {
+            TimeValue timeout = route.getAsTime("timeout", null);
+            if (timeout == null) {
+                continue;
+            }
+            for (String method : route.getAsArray("method", new String[]{"GET", "POST", "PUT", "DELETE", "HEAD"})) {
+                for (String path : route.getAsArray("path")) {
+                    if (!routeTimeouts.insert(method.trim(), path, timeout)) {
+                        logger.warn("Ambiguous path " + path + " for method " + method);
+                    }
+                }
+            }
+        }
+        // The timer thread is started when the first deadline is registered
+        this.timer = new HashedWheelTimer(EsExecutors.daemonThreadFactory(settings, "http_deadline_timer"),
+                filterSettings.getAsTime("timer.tick_duration", TimeValue.timeValueMillis(10)).millis(),
+                TimeUnit.MILLISECONDS, filterSettings.getAsInt("timer.ticks_per_wheel", 512));
     }
 
     @Override
     public void doFilter(HttpRequest request, HttpChannel channel, FilterChain filterChain) {
-        if (request.hasParam(SLEEP_PARAM)) {
-            long sleep = -1;
+        TimeValue timeout = timeout(request);
+        if (timeout == null || timeout.millis() <= 0) {
+            filterChain.doFilter(request, channel);
+            return;
+        }
+        requests.inc();
+        DeadlineHttpChannel deadlineChannel = new DeadlineHttpChannel(request, channel, timeout);
+        deadlineChannel.timeout(timer.newTimeout(deadlineChannel, timeout.millis(), TimeUnit.MILLISECONDS));
+        try {
+            filterChain.doFilter(request, deadlineChannel);
+        } finally {
+            deadlineChannel.dispatched();
+        }
+    }
+
+    /**
+     * Returns the time the request is allowed to take or null if the request has no deadline
+     */
+    public TimeValue timeout(HttpRequest request) {
+        if (Strings.hasLength(header)) {
+            String value = request.header(header);
+            if (value != null) {
+                try {
+                    return TimeValue.parseTimeValue(value.trim(), null);
+                } catch (ElasticsearchParseException ex) {
+                    logger.debug("Ignoring invalid {} header [{}]", header, value);
+                }
+            }
+        }
+        if (Strings.hasLength(param) && request.hasParam(param)) {
             try {
-                sleep = request.paramAsTime(SLEEP_PARAM, TimeValue.timeValueMillis(0)).millis();
+                TimeValue timeout = request.paramAsTime(param, null);
+                if (timeout != null && timeout.millis() > 0) {
+                    return TimeValue.timeValueMillis(timeout.millis() + paramGrace.millis());
+                }
             } catch (ElasticsearchParseException ex) {
-                // Ignore
+                logger.debug("Ignoring invalid {} parameter [{}]", param, request.param(param));
             }
-            if (sleep > 0) {
-                try {
-                    Thread.sleep(sleep);
-                } catch (InterruptedException e) {
-                    // Ignore
+        }
+        TimeValue timeout = routeTimeouts.retrieve(request.method(), request.path());
+        return timeout != null ? timeout : defaultTimeout;
+    }
+
+    public long expired() {
+        return expired.count();
+    }
+
+    public long discarded() {
+        return discarded.count();
+    }
+
+    @Override
+    public void close() {
+        timer.stop();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("requests", requests.count());
+        builder.field("expired", expired.count());
+        builder.field("discarded", discarded.count());
+        return builder;
+    }
+
+    /**
+     * Passes the first of the elasticsearch response and the timeout response to the client. The timeout
+     * response isn't sent until the request is dispatched, so the request isn't released while
+     * elasticsearch is still parsing it.
+     */
+    private class DeadlineHttpChannel extends HttpChannel implements TimerTask {
+        private final HttpChannel channel;
+
+        private final TimeValue timeout;
+
+        private volatile Timeout deadline;
+
+        private boolean dispatched;
+
+        private boolean timedOut;
+
+        private boolean responded;
+
+        DeadlineHttpChannel(HttpRequest request, HttpChannel channel, TimeValue timeout) {
+            super(request);
+            this.channel = channel;
+            this.timeout = timeout;
+        }
+
+        void timeout(Timeout deadline) {
+            this.deadline = deadline;
+        }
+
+        void dispatched() {
+            synchronized (this) {
+                dispatched = true;
+                if (!timedOut || responded) {
+                    return;
+                }
+                responded = true;
+            }
+            sendTimeout();
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            synchronized (this) {
+                if (responded) {
+                    return;
+                }
+                timedOut = true;
+                if (!dispatched) {
+                    return;
+                }
+                responded = true;
+            }
+            sendTimeout();
+        }
+
+        @Override
+        public void sendResponse(RestResponse response) {
+            synchronized (this) {
+                if (responded) {
+                    discarded.inc();
+                    return;
                 }
+                responded = true;
+            }
+            Timeout deadline = this.deadline;
+            if (deadline != null) {
+                deadline.cancel();
+            }
+            channel.sendResponse(response);
+        }
+
+        private void sendTimeout() {
+            expired.inc();
+            try {
+                XContentBuilder builder = channel.newBuilder();
+                builder.startObject()
+                        .field("error", "Request didn't complete in [" + timeout + "]")
+                        .field("status", RestStatus.GATEWAY_TIMEOUT.getStatus())
+                        .endObject();
+                channel.sendResponse(new BytesRestResponse(RestStatus.GATEWAY_TIMEOUT, builder));
+            } catch (IOException e) {
+                logger.warn("Failed to send response", e);
+                channel.sendResponse(new BytesRestResponse(RestStatus.GATEWAY_TIMEOUT));
             }
         }
-        filterChain.doFilter(request, channel);
     }
 }
@@ -15,19 +15,29 @@
  */
 package com.sonian.elasticsearch.http.jetty;
 
+import com.sonian.elasticsearch.http.jetty.admission.AdmissionController;
+import com.sonian.elasticsearch.http.jetty.compress.ResponseCompressor;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.http.HttpChannel;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author imotov
  */
-public class JettyHttpServerRestChannel extends HttpChannel {
+public class JettyHttpServerRestChannel extends HttpChannel implements AsyncListener {
     private final RestRequest restRequest;
 
     private final HttpServletResponse resp;
@@ -36,11 +46,35 @@ public class JettyHttpServerRestChannel extends HttpChannel {
 
     private final CountDownLatch latch;
 
+    private final AsyncContext asyncContext;
+
+    private final AtomicBoolean responded = new AtomicBoolean();
+
+    private volatile int chunkedThreshold = -1;
+
+    private volatile int chunkSize;
+
+    private volatile boolean directWrites = true;
+
+    private volatile ResponseCompressor compressor;
+
     public JettyHttpServerRestChannel(RestRequest restRequest, HttpServletResponse resp) {
+        this(restRequest, resp, null);
+    }
+
+    /**
+     * Creates a channel for a suspended request. The response is written and the request is
+     * completed on the thread that calls {@link #sendResponse(RestResponse)}.
+     */
+    public JettyHttpServerRestChannel(RestRequest restRequest, HttpServletResponse resp, AsyncContext asyncContext) {
         super(restRequest);
         this.restRequest = restRequest;
         this.resp = resp;
+        this.asyncContext = asyncContext;
         this.latch = new CountDownLatch(1);
+        if (asyncContext != null) {
+            asyncContext.addListener(this);
+        }
     }
 
     public void await() throws InterruptedException {
@@ -51,8 +85,69 @@ public class JettyHttpServerRestChannel extends HttpChannel {
         return sendFailure;
     }
 
+    public boolean isAsync() {
+        return asyncContext != null;
+    }
+
+    /**
+     * If enabled, array backed responses are passed to jetty as the complete response content instead of
+     * being copied into the response buffer
+     */
+    public void directWrites(boolean directWrites) {
+        this.directWrites = directWrites;
+    }
+
+    /**
+     * Sets the compressor used to gzip responses, null disables compression
+     */
+    public void compressor(ResponseCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Responses larger than threshold are sent using chunked transfer encoding in slices of chunkSize
+     * bytes, the output is flushed after each slice. Negative threshold disables chunking.
+     */
+    public void chunkedResponses(int threshold, int chunkSize) {
+        this.chunkedThreshold = threshold;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Releases the request. Buffers holding the request body are recycled, suspended requests
+     * are completed, otherwise the jetty thread waiting in {@link #await()} is woken up.
+     */
+    public void complete() {
+        complete(false);
+    }
+
+    /**
+     * Completes the request, the body of a request that timed out is abandoned instead of released
+     * because elasticsearch might still be reading it
+     */
+    private void complete(boolean timedOut) {
+        try {
+            if (restRequest instanceof JettyHttpServerRestRequest) {
+                if (timedOut) {
+                    ((JettyHttpServerRestRequest) restRequest).abandon();
+                } else {
+                    ((JettyHttpServerRestRequest) restRequest).release();
+                }
+            }
+            if (asyncContext != null) {
+                asyncContext.complete();
+            }
+        } finally {
+            latch.countDown();
+        }
+    }
+
     @Override
     public void sendResponse(RestResponse response) {
+        if (!responded.compareAndSet(false, true)) {
+            // The request already timed out and jetty may have recycled the response
+            return;
+        }
         resp.setContentType(response.contentType());
         resp.addHeader("Access-Control-Allow-Origin", "*");
         if (response.status() != null) {
@@ -67,16 +162,89 @@ public class JettyHttpServerRestChannel extends HttpChannel {
             resp.addHeader("Access-Control-Allow-Headers", "X-Requested-With, Content-Type, Content-Length");
         }
         try {
-            int contentLength = response.content().length();
-            resp.setContentLength(contentLength);
+            BytesReference content = response.content();
+            ResponseCompressor compressor = this.compressor;
+            if (compressor != null && compressor.compressible(restRequest, response.contentType())) {
+                resp.addHeader("Vary", "Accept-Encoding");
+                if (compressor.shouldCompress(restRequest, response.contentType(), content.length())) {
+                    content = compressor.compress(content);
+                    resp.setHeader("Content-Encoding", "gzip");
+                }
+            }
+            int contentLength = content.length();
             ServletOutputStream out = resp.getOutputStream();
-            response.content().writeTo(out);
+            if (chunkedThreshold >= 0 && contentLength > chunkedThreshold && chunkSize > 0) {
+                // Without content length jetty switches to chunked encoding, each flush sends a chunk
+                // so only a slice of the response is buffered by jetty at any time
+                for (int offset = 0; offset < contentLength; offset += chunkSize) {
+                    content.slice(offset, Math.min(chunkSize, contentLength - offset)).writeTo(out);
+                    out.flush();
+                }
+            } else {
+                resp.setContentLength(contentLength);
+                if (directWrites && content.hasArray() && out instanceof AbstractHttpConnection.Output) {
+                    // Jetty writes the last content directly from the array to the socket together with headers
+                    ((AbstractHttpConnection.Output) out).sendContent(
+                            new ByteArrayBuffer(content.array(), content.arrayOffset(), contentLength));
+                } else {
+                    content.writeTo(out);
+                }
+            }
             // TODO: close in a finally?
             out.close();
         } catch (IOException e) {
             sendFailure = e;
         } finally {
-            latch.countDown();
+            // A gateway timeout is sent by the deadline filter while elasticsearch is still executing the request
+            complete(response.status() == RestStatus.GATEWAY_TIMEOUT);
+        }
+    }
+
+    /**
+     * Sends an error page unless a response was already sent, and releases the request.
+     */
+    public void sendError(int status) throws IOException {
+        if (responded.compareAndSet(false, true)) {
+            try {
+                if (!resp.isCommitted()) {
+                    resp.sendError(status);
+                }
+            } finally {
+                complete(status == HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            }
+        }
+    }
+
+    /**
+     * Sends <tt>429 Too Many Requests</tt> with a <tt>Retry-After</tt> header unless a response was
+     * already sent, and releases the request.
+     */
+    public void sendTooManyRequests(long retryAfterSeconds) throws IOException {
+        if (responded.compareAndSet(false, true)) {
+            try {
+                if (!resp.isCommitted()) {
+                    AdmissionController.sendTooManyRequests(resp, retryAfterSeconds);
+                }
+            } finally {
+                complete();
+            }
         }
-     }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+        sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
 }
@@ -15,9 +15,10 @@
  */
 package com.sonian.elasticsearch.http.jetty;
 
-import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.bytes.BytesReference;
-import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BigArrays;
 import org.elasticsearch.http.HttpRequest;
 import org.elasticsearch.rest.support.RestUtils;
 
@@ -25,10 +26,12 @@ import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author imotov
@@ -41,24 +44,68 @@ public class JettyHttpServerRestRequest extends HttpRequest {
 
     private final Method method;
 
-    private final Map<String, String> params;
-
     private final BytesReference content;
-    
-    private final String opaqueId;
+
+    // Params, uri and headers are decoded on first use, the request is accessed by one thread at a time
+
+    private Map<String, String> params;
+
+    private String uri;
+
+    private List<Map.Entry<String, String>> headers;
+
+    private final AtomicBoolean released = new AtomicBoolean();
 
     public JettyHttpServerRestRequest(HttpServletRequest request) throws IOException {
+        this(request, BigArrays.NON_RECYCLING_INSTANCE);
+    }
+
+    public JettyHttpServerRestRequest(HttpServletRequest request, BigArrays bigArrays) throws IOException {
+        this(request, new RequestContentReader(bigArrays));
+    }
+
+    /**
+     * Creates a request reading the body with the given reader. Buffers and files holding the body
+     * are released when {@link #release()} is called after the response is sent.
+     */
+    public JettyHttpServerRestRequest(HttpServletRequest request, RequestContentReader contentReader) throws IOException {
+        this.request = request;
+        this.method = Method.valueOf(request.getMethod());
+        content = contentReader.read(request);
+        request.setAttribute(REQUEST_CONTENT_ATTRIBUTE, content);
+    }
+
+    /**
+     * Creates a request with the given content. The body of the servlet request is not read,
+     * it's left to the caller to consume it.
+     */
+    public JettyHttpServerRestRequest(HttpServletRequest request, BytesReference content) {
         this.request = request;
-        this.opaqueId = request.getHeader("X-Opaque-Id");
         this.method = Method.valueOf(request.getMethod());
-        this.params = new HashMap<String, String>();
+        this.content = content;
+    }
 
-        if (request.getQueryString() != null) {
-            RestUtils.decodeQueryString(request.getQueryString(), 0, params);
+    /**
+     * Returns pages holding the request body to the pool or deletes and unmaps the file the body was
+     * spilled to. The content must not be used after this call.
+     */
+    public void release() {
+        if (content instanceof Releasable && released.compareAndSet(false, true)) {
+            Releasables.close((Releasable) content);
         }
+    }
 
-        content = new BytesArray(Streams.copyToByteArray(request.getInputStream()));
-        request.setAttribute(REQUEST_CONTENT_ATTRIBUTE, content);
+    /**
+     * Releases a request that elasticsearch might still be executing, for example after it timed out.
+     * The spill file is deleted, but pages and the mapping of the file are left to the garbage collector
+     * since the content can still be read.
+     */
+    public void abandon() {
+        if (content instanceof Releasable && released.compareAndSet(false, true)) {
+            if (content instanceof MappedFileBytesReference) {
+                ((MappedFileBytesReference) content).delete();
+            }
+        }
     }
 
     @Override public Method method() {
@@ -66,6 +113,16 @@ public class JettyHttpServerRestRequest extends HttpRequest {
     }
 
     @Override public String uri() {
+        if (uri == null) {
+            uri = requestPath(request);
+        }
+        return uri;
+    }
+
+    /**
+     * Returns the request path relative to the context and servlet paths
+     */
+    public static String requestPath(HttpServletRequest request) {
         int prefixLength = 0;
         if (request.getContextPath() != null ) {
             prefixLength += request.getContextPath().length();
@@ -89,12 +146,14 @@ public class JettyHttpServerRestRequest extends HttpRequest {
     }
 
     @Override public boolean contentUnsafe() {
-        return false;
+        // Recycled pages are reused once the response is sent, so anything that
+        // outlives the request has to make a copy
+        return content instanceof Releasable;
     }
 
     @Override
     public BytesReference content() {
-        return content;  //To change body of implemented methods use File | Settings | File Templates.
+        return content;
     }
 
     @Override public String header(String name) {
@@ -102,33 +161,46 @@ public class JettyHttpServerRestRequest extends HttpRequest {
     }
 
     @Override public Iterable<Map.Entry<String, String>> headers() {
-        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
-        Enumeration<String> headerNames = this.request.getHeaderNames();
-        while (headerNames.hasMoreElements()) {
-            String name = headerNames.nextElement();
-            Enumeration<String> headerValues = this.request.getHeaders(name);
-            while (headerValues.hasMoreElements()) {
-                String value = headerValues.nextElement();
-                headers.add(new SimpleEntry<String,String>(name, value));
+        if (headers == null) {
+            List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+            Enumeration<String> headerNames = this.request.getHeaderNames();
+            while (headerNames.hasMoreElements()) {
+                String name = headerNames.nextElement();
+                Enumeration<String> headerValues = this.request.getHeaders(name);
+                while (headerValues.hasMoreElements()) {
+                    String value = headerValues.nextElement();
+                    headers.add(new SimpleEntry<String,String>(name, value));
+                }
             }
+            this.headers = Collections.unmodifiableList(headers);
         }
         return headers;
     }
 
     @Override public Map<String, String> params() {
+        if (params == null) {
+            String queryString = request.getQueryString();
+            if (queryString == null) {
+                // Most params are added by the rest controller from the path
+                params = new HashMap<String, String>(4);
+            } else {
+                params = new HashMap<String, String>();
+                RestUtils.decodeQueryString(queryString, 0, params);
+            }
+        }
         return params;
     }
 
     @Override public boolean hasParam(String key) {
-        return params.containsKey(key);
+        return params().containsKey(key);
     }
 
     @Override public String param(String key) {
-        return params.get(key);
+        return params().get(key);
     }
 
     @Override public String param(String key, String defaultValue) {
-        String value = params.get(key);
+        String value = params().get(key);
         if (value == null) {
             return defaultValue;
         }
@@ -164,6 +236,6 @@ public class JettyHttpServerRestRequest extends HttpRequest {
     }
 
     public String opaqueId() {
-        return this.opaqueId;
+        return this.request.getHeader("X-Opaque-Id");
     }
 }
@@ -15,12 +15,24 @@
  */
 package com.sonian.elasticsearch.http.jetty;
 
+import com.sonian.elasticsearch.http.filter.ConnectorAwareHttpServerTransport;
+import com.sonian.elasticsearch.http.jetty.admission.AdmissionController;
+import com.sonian.elasticsearch.http.jetty.priority.PriorityLanes;
+import com.sonian.elasticsearch.http.jetty.bulk.StreamingBulkAction;
+import com.sonian.elasticsearch.http.jetty.compress.ResponseCompressor;
+import com.sonian.elasticsearch.http.jetty.handler.ReloadableHandler;
+import org.eclipse.jetty.security.LoginService;
+import org.eclipse.jetty.server.AbstractConnector;
 import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.xml.XmlConfiguration;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.ElasticsearchIllegalStateException;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.ClusterName;
 import org.elasticsearch.common.collect.MapBuilder;
@@ -31,20 +43,35 @@ import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.BoundTransportAddress;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
 import org.elasticsearch.common.transport.PortsRange;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.http.*;
 import org.elasticsearch.transport.BindTransportException;
+import org.elasticsearch.watcher.FileChangesListener;
+import org.elasticsearch.watcher.FileWatcher;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.*;
 import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author imotov
  */
-public class JettyHttpServerTransport extends AbstractLifecycleComponent<HttpServerTransport> implements HttpServerTransport {
+public class JettyHttpServerTransport extends AbstractLifecycleComponent<HttpServerTransport> implements HttpServerTransport,
+        ConnectorAwareHttpServerTransport {
 
     public static final String TRANSPORT_ATTRIBUTE = "com.sonian.elasticsearch.http.jetty.transport";
 
@@ -58,6 +85,18 @@ public class JettyHttpServerTransport extends AbstractLifecycleComponent<HttpSer
 
     private final String[] jettyConfig;
 
+    private final boolean settingsConfig;
+
+    private final boolean watchConfig;
+
+    private final ResourceWatcherService resourceWatcherService;
+
+    private final List<FileWatcher> configWatchers = new CopyOnWriteArrayList<FileWatcher>();
+
+    private volatile ReloadableHandler reloadableHandler;
+
+    private final TimeValue drainTimeout;
+
     private final String jettyConfigServerId;
 
     private final Environment environment;
@@ -68,16 +107,38 @@ public class JettyHttpServerTransport extends AbstractLifecycleComponent<HttpSer
 
     private final Client client;
 
+    private final BigArrays bigArrays;
+
+    private final StreamingBulkAction streamingBulkAction;
+
+    private final ResponseCompressor responseCompressor;
+
+    private final AdmissionController admissionController;
+
+    private final PriorityLanes priorityLanes;
+
+    private final ByteSizeValue maxContentLength;
+
+    private final long spillThreshold;
+
+    private final File spillDirectory;
+
     private volatile BoundTransportAddress boundAddress;
 
     private volatile Server jettyServer;
 
     private volatile HttpServerAdapter httpServerAdapter;
 
+    private final Map<String, Settings> namedConnectors;
+
+    private final ConcurrentMap<String, HttpServerAdapter> connectorAdapters = ConcurrentCollections.newConcurrentMap();
+
     @Inject
     public JettyHttpServerTransport(Settings settings, Environment environment, NetworkService networkService,
-                                    ESLoggerWrapper loggerWrapper, ClusterName clusterName, Client client) {
+                                    ESLoggerWrapper loggerWrapper, ClusterName clusterName, Client client,
+                                    BigArrays bigArrays, ResourceWatcherService resourceWatcherService) {
         super(settings);
+        this.resourceWatcherService = resourceWatcherService;
         this.environment = environment;
         this.networkService = networkService;
         this.port = componentSettings.get("port", settings.get("http.port", "9200-9300"));
@@ -85,95 +146,125 @@ public class JettyHttpServerTransport extends AbstractLifecycleComponent<HttpSer
         this.publishHost = componentSettings.get("publish_host", settings.get("http.publish_host", settings.get("http.host")));
         this.jettyConfig = componentSettings.getAsArray("config", new String[]{"jetty.xml"});
         this.jettyConfigServerId = componentSettings.get("server_id", "ESServer");
+        String configType = componentSettings.get("config_type", "xml");
+        if ("settings".equals(configType)) {
+            this.settingsConfig = true;
+        } else if ("xml".equals(configType)) {
+            this.settingsConfig = false;
+        } else {
+            throw new ElasticsearchIllegalArgumentException("Unknown config_type [" + configType + "]");
+        }
+        this.watchConfig = componentSettings.getAsBoolean("reload.watch", false);
+        this.drainTimeout = componentSettings.getAsTime("drain_timeout", TimeValue.timeValueSeconds(10));
+        this.maxContentLength = componentSettings.getAsBytesSize("max_content_length",
+                settings.getAsBytesSize("http.max_content_length", new ByteSizeValue(100, ByteSizeUnit.MB)));
+        this.spillThreshold = componentSettings.getAsBytesSize("request.spill_threshold", new ByteSizeValue(-1)).bytes();
+        String spillDirectory = componentSettings.get("request.spill_directory");
+        if (spillDirectory != null) {
+            this.spillDirectory = new File(spillDirectory);
+        } else {
+            this.spillDirectory = new File(environment.dataFiles()[0], "jetty-spill");
+        }
+        this.namedConnectors = componentSettings.getGroups("connectors");
         this.loggerWrapper = loggerWrapper;
         this.clusterName = clusterName;
         this.client = client;
+        this.bigArrays = bigArrays;
+        if (componentSettings.getAsBoolean("bulk.streaming", false)) {
+            this.streamingBulkAction = new StreamingBulkAction(settings, componentSettings, client, logger);
+        } else {
+            this.streamingBulkAction = null;
+        }
+        if (componentSettings.getAsBoolean("compression.enabled", false)) {
+            this.responseCompressor = new ResponseCompressor(componentSettings.getByPrefix("compression."));
+        } else {
+            this.responseCompressor = null;
+        }
+        if (componentSettings.getAsBoolean("admission.enabled", false)) {
+            this.admissionController = new AdmissionController(componentSettings.getByPrefix("admission."));
+        } else {
+            this.admissionController = null;
+        }
+        if (componentSettings.getAsBoolean("priority.enabled", false)) {
+            this.priorityLanes = new PriorityLanes(settings, componentSettings.getByPrefix("priority."), logger);
+        } else {
+            this.priorityLanes = null;
+        }
     }
 
     @Override
     protected void doStart() throws ElasticsearchException {
-        PortsRange portsRange = new PortsRange(port);
-        final AtomicReference<Exception> lastException = new AtomicReference<Exception>();
-
+        if (spillThreshold >= 0) {
+            prepareSpillDirectory();
+        }
+        long startTime = System.nanoTime();
         Log.setLog(loggerWrapper);
 
-        portsRange.iterate(new PortsRange.PortCallback() {
-            @Override
-            public boolean onPortNumber(int portNumber) {
-                try {
-                    Server server = null;
-                    XmlConfiguration lastXmlConfiguration = null;
-                    Object[] objs = new Object[jettyConfig.length];
-                    Map<String, String> esProperties = jettySettings(bindHost, portNumber);
-
-                    for (int i = 0; i < jettyConfig.length; i++) {
-                        String configFile = jettyConfig[i];
-                        URL config = environment.resolveConfig(configFile);
-                        XmlConfiguration xmlConfiguration = new XmlConfiguration(config);
-
-                        // Make ids of objects created in early configurations available
-                        // in the later configurations
-                        if (lastXmlConfiguration != null) {
-                            xmlConfiguration.getIdMap().putAll(lastXmlConfiguration.getIdMap());
-                        } else {
-                            xmlConfiguration.getIdMap().put("ESServerTransport", JettyHttpServerTransport.this);
-                            xmlConfiguration.getIdMap().put("ESClient", client);
-                        }
-                        // Inject elasticsearch properties
-                        xmlConfiguration.getProperties().putAll(esProperties);
-
-                        objs[i] = xmlConfiguration.configure();
-                        lastXmlConfiguration = xmlConfiguration;
-                    }
-                    // Find jetty Server with id  jettyConfigServerId
-                    Object serverObject = lastXmlConfiguration.getIdMap().get(jettyConfigServerId);
-                    if (serverObject != null) {
-                        if (serverObject instanceof Server) {
-                            server = (Server) serverObject;
-                        }
-                    } else {
-                        // For compatibility - if it's not available, find first available jetty Server
-                        for (Object obj : objs) {
-                            if (obj instanceof Server) {
-                                server = (Server) obj;
-                                break;
-                            }
-                        }
-                    }
-                    if (server == null) {
-                        logger.error("Cannot find server with id [{}] in configuration files [{}]", jettyConfigServerId, jettyConfig);
-                        lastException.set(new ElasticsearchException("Cannot find server with id " + jettyConfigServerId));
-                        return true;
-                    }
+        // The configuration is parsed only once with the first port of the range,
+        // only the connector that uses this port is rebound if the port is taken
+        int firstPort = firstPort(port);
+        Object[] objs = new Object[settingsConfig ? 1 : jettyConfig.length];
+        Server server;
+        try {
+            server = createServer(objs, firstPort);
+        } catch (Exception e) {
+            logger.error("Jetty Startup Failed ", e);
+            throw new BindHttpException("Failed to configure jetty", e);
+        }
+        if (server == null) {
+            logger.error("Cannot find server with id [{}] in configuration files [{}]", jettyConfigServerId, jettyConfig);
+            throw new BindHttpException("Failed to bind to [" + port + "]",
+                    new ElasticsearchException("Cannot find server with id " + jettyConfigServerId));
+        }
+        long configuredTime = System.nanoTime();
+
+        // Keep it for now for backward compatibility with previous versions of jetty.xml
+        server.setAttribute(TRANSPORT_ATTRIBUTE, JettyHttpServerTransport.this);
+
+        enableConnectorStatistics(server);
 
-                    // Keep it for now for backward compatibility with previous versions of jetty.xml
-                    server.setAttribute(TRANSPORT_ATTRIBUTE, JettyHttpServerTransport.this);
-
-                    // Start all lifecycle objects configured by xml configurations
-                    for (Object obj : objs) {
-                        if (obj instanceof LifeCycle) {
-                            LifeCycle lifeCycle = (LifeCycle) obj;
-                            if (!lifeCycle.isRunning()) {
-                                lifeCycle.start();
-                            }
-                        }
+        // Requests go through a handler that allows replacing the handler tree on reload
+        ReloadableHandler reloadable = null;
+        if (server.getHandler() != null) {
+            reloadable = new ReloadableHandler(server.getHandler());
+            server.setHandler(reloadable);
+        }
+
+        try {
+            Connector primaryConnector = findConnector(server, firstPort);
+            if (primaryConnector != null) {
+                bindConnector(primaryConnector, port);
+            }
+            // Start all lifecycle objects configured by xml configurations
+            for (Object obj : objs) {
+                if (obj instanceof LifeCycle) {
+                    LifeCycle lifeCycle = (LifeCycle) obj;
+                    if (!lifeCycle.isRunning()) {
+                        lifeCycle.start();
                     }
-                    jettyServer = server;
-                    lastException.set(null);
-                } catch (BindException e) {
-                    lastException.set(e);
-                    return false;
-                } catch (Exception e) {
-                    logger.error("Jetty Startup Failed ", e);
-                    lastException.set(e);
-                    return true;
                 }
-                return true;
             }
-        });
-        if (lastException.get() != null) {
-            throw new BindHttpException("Failed to bind to [" + port + "]", lastException.get());
+            addNamedConnectors(server);
+        } catch (Exception e) {
+            try {
+                server.stop();
+            } catch (Exception stopException) {
+                logger.debug("Failed to stop jetty after failed startup", stopException);
+            }
+            if (e instanceof BindHttpException) {
+                throw (BindHttpException) e;
+            }
+            logger.error("Jetty Startup Failed ", e);
+            throw new BindHttpException("Failed to bind to [" + port + "]", e);
+        }
+        jettyServer = server;
+        reloadableHandler = reloadable;
+        if (watchConfig && !settingsConfig) {
+            watchConfigFiles();
         }
+        logger.info("jetty started in [{}], configuration parsed in [{}]",
+                TimeValue.timeValueNanos(System.nanoTime() - startTime),
+                TimeValue.timeValueNanos(configuredTime - startTime));
         InetSocketAddress jettyBoundAddress = findFirstInetConnector(jettyServer);
         if (jettyBoundAddress != null) {
             InetSocketAddress publishAddress;
@@ -188,30 +279,321 @@ public class JettyHttpServerTransport extends AbstractLifecycleComponent<HttpSer
         }
     }
 
+    private Server createServer(Object[] objs, int portNumber) throws Exception {
+        if (settingsConfig) {
+            Server server = new JettyServerBuilder(componentSettings, environment, client).build(this, bindHost, portNumber);
+            objs[0] = server;
+            return server;
+        }
+        return configureServer(objs, portNumber);
+    }
+
+    /**
+     * Rebuilds the handler tree from the configuration and replaces the handler tree of the running server
+     * with it. Requests that are already being handled finish on the old tree. Connectors with unchanged
+     * class, host and port keep their listening sockets, connectors that were added to the configuration
+     * are started and connectors that were removed from it are stopped. The main connector and named
+     * connectors are never changed.
+     */
+    public synchronized void reload() throws Exception {
+        Server server = jettyServer;
+        ReloadableHandler reloadable = reloadableHandler;
+        if (server == null || reloadable == null) {
+            throw new ElasticsearchIllegalStateException("Jetty server is not running");
+        }
+        long startTime = System.nanoTime();
+        int primaryPort = ((InetSocketTransportAddress) boundAddress.boundAddress()).address().getPort();
+        Object[] objs = new Object[settingsConfig ? 1 : jettyConfig.length];
+        Server newServer = createServer(objs, primaryPort);
+        if (newServer == null) {
+            throw new ElasticsearchException("Cannot find server with id " + jettyConfigServerId);
+        }
+        Handler handler = newServer.getHandler();
+        if (handler == null) {
+            throw new ElasticsearchException("Server " + jettyConfigServerId + " doesn't have a handler");
+        }
+        newServer.setHandler(null);
+        List<LifeCycle> dependencies = new ArrayList<LifeCycle>();
+        for (Object bean : newServer.getBeans()) {
+            if (bean instanceof LoginService && bean instanceof LifeCycle) {
+                dependencies.add((LifeCycle) bean);
+            }
+        }
+        reloadable.swap(handler, dependencies);
+        enableConnectorStatistics(newServer);
+        reloadConnectors(server, newServer, primaryPort);
+        logger.info("reloaded jetty configuration in [{}]", TimeValue.timeValueNanos(System.nanoTime() - startTime));
+    }
+
+    private void reloadConnectors(Server server, Server newServer, int primaryPort) throws Exception {
+        Connector[] newConnectors = newServer.getConnectors() != null ? newServer.getConnectors() : new Connector[0];
+        Connector[] connectors = server.getConnectors() != null ? server.getConnectors() : new Connector[0];
+        List<Connector> unchanged = new ArrayList<Connector>();
+        for (Connector connector : connectors) {
+            if (connector.getPort() == primaryPort || namedConnectors.containsKey(connector.getName())) {
+                continue;
+            }
+            Connector newConnector = null;
+            for (Connector candidate : newConnectors) {
+                if (sameAddress(connector, candidate)) {
+                    newConnector = candidate;
+                    break;
+                }
+            }
+            if (newConnector != null) {
+                unchanged.add(newConnector);
+            } else {
+                server.removeConnector(connector);
+                connector.stop();
+                logger.info("stopped connector [{}]", connector);
+            }
+        }
+        for (Connector newConnector : newConnectors) {
+            if (newConnector.getPort() != primaryPort && !unchanged.contains(newConnector)) {
+                server.addConnector(newConnector);
+                newConnector.start();
+                logger.info("started connector [{}]", newConnector);
+            }
+        }
+    }
+
+    private static boolean sameAddress(Connector connector, Connector other) {
+        return connector.getClass() == other.getClass() && connector.getPort() == other.getPort()
+                && (connector.getHost() == null ? other.getHost() == null : connector.getHost().equals(other.getHost()));
+    }
+
+    private void watchConfigFiles() {
+        for (String configFile : jettyConfig) {
+            URL config = environment.resolveConfig(configFile);
+            if (!"file".equals(config.getProtocol())) {
+                continue;
+            }
+            FileWatcher watcher;
+            try {
+                watcher = new FileWatcher(new File(config.toURI()));
+            } catch (URISyntaxException e) {
+                logger.warn("Cannot watch configuration file [{}]", e, config);
+                continue;
+            }
+            watcher.addListener(new FileChangesListener() {
+                @Override
+                public void onFileChanged(File file) {
+                    logger.info("configuration file [{}] changed, reloading", file);
+                    try {
+                        reload();
+                    } catch (Exception e) {
+                        logger.warn("Failed to reload jetty configuration", e);
+                    }
+                }
+            });
+            resourceWatcherService.add(watcher);
+            configWatchers.add(watcher);
+        }
+    }
+
+    /**
+     * Returns the number of requests that are currently being handled
+     */
+    public int inFlightRequests() {
+        ReloadableHandler reloadable = reloadableHandler;
+        return reloadable != null ? reloadable.inFlight() : 0;
+    }
+
+    /**
+     * Returns true if the transport is stopping and waits for requests in flight to complete
+     */
+    public boolean draining() {
+        ReloadableHandler reloadable = reloadableHandler;
+        return reloadable != null && reloadable.isDraining();
+    }
+
+    /**
+     * Returns the handler that passes requests to the current handler tree
+     */
+    public ReloadableHandler reloadableHandler() {
+        return reloadableHandler;
+    }
+
+    /**
+     * Parses all jetty configuration files and returns the jetty server that should handle elasticsearch
+     * requests or <tt>null</tt> if it cannot be found. Objects created by each configuration file are stored
+     * in <tt>objs</tt>.
+     */
+    private Server configureServer(Object[] objs, int portNumber) throws Exception {
+        XmlConfiguration lastXmlConfiguration = null;
+        Map<String, String> esProperties = jettySettings(bindHost, portNumber);
+
+        for (int i = 0; i < jettyConfig.length; i++) {
+            String configFile = jettyConfig[i];
+            URL config = environment.resolveConfig(configFile);
+            XmlConfiguration xmlConfiguration = new XmlConfiguration(config);
+
+            // Make ids of objects created in early configurations available
+            // in the later configurations
+            if (lastXmlConfiguration != null) {
+                xmlConfiguration.getIdMap().putAll(lastXmlConfiguration.getIdMap());
+            } else {
+                xmlConfiguration.getIdMap().put("ESServerTransport", this);
+                xmlConfiguration.getIdMap().put("ESClient", client);
+            }
+            // Inject elasticsearch properties
+            xmlConfiguration.getProperties().putAll(esProperties);
+
+            objs[i] = xmlConfiguration.configure();
+            lastXmlConfiguration = xmlConfiguration;
+        }
+        // Find jetty Server with id  jettyConfigServerId
+        Object serverObject = lastXmlConfiguration != null ? lastXmlConfiguration.getIdMap().get(jettyConfigServerId) : null;
+        if (serverObject != null) {
+            if (serverObject instanceof Server) {
+                return (Server) serverObject;
+            }
+        } else {
+            // For compatibility - if it's not available, find first available jetty Server
+            for (Object obj : objs) {
+                if (obj instanceof Server) {
+                    return (Server) obj;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int firstPort(String port) {
+        final int[] firstPort = new int[1];
+        new PortsRange(port).iterate(new PortsRange.PortCallback() {
+            @Override
+            public boolean onPortNumber(int portNumber) {
+                firstPort[0] = portNumber;
+                return true;
+            }
+        });
+        return firstPort[0];
+    }
+
+    private static Connector findConnector(Server server, int port) {
+        Connector[] connectors = server.getConnectors();
+        if (connectors != null) {
+            for (Connector connector : connectors) {
+                if (connector.getPort() == port) {
+                    return connector;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens the connector on the first available port of the range
+     */
+    private void bindConnector(final Connector connector, String port) {
+        final AtomicReference<Exception> lastException = new AtomicReference<Exception>();
+        boolean bound = new PortsRange(port).iterate(new PortsRange.PortCallback() {
+            @Override
+            public boolean onPortNumber(int portNumber) {
+                connector.setPort(portNumber);
+                try {
+                    connector.open();
+                    lastException.set(null);
+                    return true;
+                } catch (BindException e) {
+                    lastException.set(e);
+                    closeQuietly(connector);
+                    return false;
+                } catch (IOException e) {
+                    lastException.set(e);
+                    closeQuietly(connector);
+                    return true;
+                }
+            }
+        });
+        if (!bound || lastException.get() != null) {
+            String target = connector.getName() != null ? "connector [" + connector.getName() + "] to" : "to";
+            throw new BindHttpException("Failed to bind " + target + " [" + port + "]", lastException.get());
+        }
+    }
+
+    private void closeQuietly(Connector connector) {
+        try {
+            // A connector that failed to bind keeps its unbound socket, it has to be closed before the next attempt
+            connector.close();
+        } catch (IOException e) {
+            logger.trace("Failed to close connector", e);
+        }
+    }
+
     private InetSocketAddress findFirstInetConnector(Server server) {
         Connector[] connectors = server.getConnectors();
         if (connectors != null) {
             for (Connector connector : connectors) {
-                Object connection = connector.getConnection();
-                if (connection instanceof ServerSocketChannel) {
-                    SocketAddress address = ((ServerSocketChannel) connector.getConnection()).socket().getLocalSocketAddress();
-                    if (address instanceof InetSocketAddress) {
-                        return (InetSocketAddress) address;
-                    }
-                } else if (connection instanceof ServerSocket) {
-                    SocketAddress address = ((ServerSocket) connector.getConnection()).getLocalSocketAddress();
-                    if (address instanceof InetSocketAddress) {
-                        return (InetSocketAddress) address;
-                    }
+                InetSocketAddress address = inetAddress(connector);
+                if (address != null) {
+                    return address;
                 }
             }
         }
         return null;
     }
 
+    private static InetSocketAddress inetAddress(Connector connector) {
+        Object connection = connector.getConnection();
+        if (connection instanceof ServerSocketChannel) {
+            SocketAddress address = ((ServerSocketChannel) connector.getConnection()).socket().getLocalSocketAddress();
+            if (address instanceof InetSocketAddress) {
+                return (InetSocketAddress) address;
+            }
+        } else if (connection instanceof ServerSocket) {
+            SocketAddress address = ((ServerSocket) connector.getConnection()).getLocalSocketAddress();
+            if (address instanceof InetSocketAddress) {
+                return (InetSocketAddress) address;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds connectors configured in <tt>connectors.NAME</tt> settings to the started server. Each connector
+     * gets its own thread pool, so requests on one port cannot starve requests on another port.
+     */
+    private void addNamedConnectors(Server server) throws Exception {
+        for (Map.Entry<String, Settings> entry : namedConnectors.entrySet()) {
+            String name = entry.getKey();
+            Settings connectorSettings = entry.getValue();
+            SelectChannelConnector connector = new SelectChannelConnector();
+            connector.setName(name);
+            JettyServerBuilder.configureConnector(connector, connectorSettings, bindHost);
+            connector.setThreadPool(JettyServerBuilder.threadPool("jetty-" + name, connectorSettings));
+            server.addConnector(connector);
+            String port = connectorSettings.get("port");
+            if (port == null) {
+                throw new ElasticsearchIllegalArgumentException("Port is not specified for connector [" + name + "]");
+            }
+            bindConnector(connector, port);
+            connector.start();
+            logger.info("connector [{}] bound to [{}]", name, inetAddress(connector));
+        }
+    }
+
+    private void enableConnectorStatistics(Server server) {
+        Connector[] connectors = server.getConnectors();
+        if (connectors != null) {
+            for (Connector connector : connectors) {
+                if (connector instanceof AbstractConnector) {
+                    ((AbstractConnector) connector).setStatsOn(true);
+                }
+            }
+        }
+    }
+
     @Override
     protected void doStop() throws ElasticsearchException {
+        for (FileWatcher watcher : configWatchers) {
+            resourceWatcherService.remove(watcher);
+        }
+        configWatchers.clear();
         if (jettyServer != null) {
+            drain(jettyServer);
+            reloadableHandler = null;
             try {
                 jettyServer.stop();
             } catch (Exception ex) {
@@ -221,8 +603,57 @@ public class JettyHttpServerTransport extends AbstractLifecycleComponent<HttpSer
         }
     }
 
+    /**
+     * Stops accepting new connections, asks clients to close keep-alive connections and waits for requests
+     * that are in flight to complete or for <tt>drain_timeout</tt> to elapse
+     */
+    private void drain(Server server) {
+        ReloadableHandler reloadable = reloadableHandler;
+        if (reloadable == null || drainTimeout.millis() <= 0) {
+            return;
+        }
+        reloadable.drain();
+        Connector[] connectors = server.getConnectors();
+        if (connectors != null) {
+            for (Connector connector : connectors) {
+                closeQuietly(connector);
+            }
+        }
+        if (reloadable.inFlight() == 0) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + drainTimeout.millis();
+        long nextReport = startTime;
+        int inFlight;
+        while ((inFlight = reloadable.inFlight()) > 0) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                logger.warn("stopping jetty with [{}] requests in flight after waiting for [{}]", inFlight, drainTimeout);
+                return;
+            }
+            if (now >= nextReport) {
+                logger.info("waiting for [{}] requests in flight to complete", inFlight);
+                nextReport = now + 1000;
+            }
+            try {
+                Thread.sleep(Math.min(50, deadline - now));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        logger.info("drained requests in flight in [{}]", TimeValue.timeValueMillis(System.currentTimeMillis() - startTime));
+    }
+
     @Override
     protected void doClose() throws ElasticsearchException {
+        if (responseCompressor != null) {
+            responseCompressor.close();
+        }
+        if (priorityLanes != null) {
+            priorityLanes.close();
+        }
     }
 
     @Override
@@ -232,12 +663,27 @@ public class JettyHttpServerTransport extends AbstractLifecycleComponent<HttpSer
 
     @Override
     public HttpInfo info() {
-        return new HttpInfo(boundAddress(), 0);
+        return new HttpInfo(boundAddress(), maxContentLength.bytes());
     }
 
     @Override
     public HttpStats stats() {
-        return new HttpStats(0, 0);
+        Server server = jettyServer;
+        long serverOpen = 0;
+        long totalOpen = 0;
+        if (server != null) {
+            Connector[] connectors = server.getConnectors();
+            if (connectors != null) {
+                for (Connector connector : connectors) {
+                    if (connector instanceof AbstractConnector) {
+                        AbstractConnector abstractConnector = (AbstractConnector) connector;
+                        serverOpen += abstractConnector.getConnectionsOpen();
+                        totalOpen += abstractConnector.getConnections();
+                    }
+                }
+            }
+        }
+        return new HttpStats(serverOpen, totalOpen);
     }
 
     @Override
@@ -249,6 +695,117 @@ public class JettyHttpServerTransport extends AbstractLifecycleComponent<HttpSer
         return httpServerAdapter;
     }
 
+    @Override
+    public void httpServerAdapter(String connectorName, HttpServerAdapter httpServerAdapter) {
+        connectorAdapters.put(connectorName, httpServerAdapter);
+    }
+
+    /**
+     * Returns the adapter for requests received by the given connector
+     */
+    public HttpServerAdapter httpServerAdapter(Connector connector) {
+        if (connector != null && !connectorAdapters.isEmpty()) {
+            HttpServerAdapter adapter = connectorAdapters.get(connector.getName());
+            if (adapter != null) {
+                return adapter;
+            }
+        }
+        return httpServerAdapter;
+    }
+
+    /**
+     * Returns connectors of the running server
+     */
+    public Connector[] connectors() {
+        Server server = jettyServer;
+        if (server == null || server.getConnectors() == null) {
+            return new Connector[0];
+        }
+        return server.getConnectors();
+    }
+
+    /**
+     * Returns addresses of all connectors of the running server by connector name
+     */
+    public Map<String, InetSocketAddress> connectorAddresses() {
+        Map<String, InetSocketAddress> addresses = new LinkedHashMap<String, InetSocketAddress>();
+        for (Connector connector : connectors()) {
+            InetSocketAddress address = inetAddress(connector);
+            if (address != null) {
+                addresses.put(connector.getName(), address);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Creates the spill directory and removes bodies left there by a previous run
+     */
+    private void prepareSpillDirectory() {
+        if (!spillDirectory.exists() && !spillDirectory.mkdirs()) {
+            throw new ElasticsearchException("Cannot create spill directory " + spillDirectory);
+        }
+        File[] files = spillDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("request-") && file.getName().endsWith(".body")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the size above which request bodies are written to files in {@link #spillDirectory()},
+     * or -1 if bodies are always kept in memory
+     */
+    public long spillThreshold() {
+        return spillThreshold;
+    }
+
+    public File spillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Returns the maximum size of a request body
+     */
+    public ByteSizeValue maxContentLength() {
+        return maxContentLength;
+    }
+
+    public BigArrays bigArrays() {
+        return bigArrays;
+    }
+
+    /**
+     * Returns the action executing streamed bulk requests or null if bulk streaming is disabled
+     */
+    public StreamingBulkAction streamingBulkAction() {
+        return streamingBulkAction;
+    }
+
+    /**
+     * Returns the response compressor or null if compression is disabled
+     */
+    public ResponseCompressor responseCompressor() {
+        return responseCompressor;
+    }
+
+    /**
+     * Returns the admission controller or null if admission control is disabled
+     */
+    public AdmissionController admissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Returns the priority lanes or null if requests are not executed in priority lanes
+     */
+    public PriorityLanes priorityLanes() {
+        return priorityLanes;
+    }
+
     public Settings settings() {
         return settings;
     }
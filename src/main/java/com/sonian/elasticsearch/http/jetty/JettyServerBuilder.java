@@ -0,0 +1,186 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty;
+
+import com.sonian.elasticsearch.http.jetty.error.JettyHttpServerErrorHandler;
+import com.sonian.elasticsearch.http.jetty.handler.JettyHttpServerTransportHandler;
+import com.sonian.elasticsearch.http.jetty.security.ESLoginService;
+import com.sonian.elasticsearch.http.jetty.security.RestConstraintSecurityHandler;
+import org.eclipse.jetty.security.ConstraintMapping;
+import org.eclipse.jetty.security.HashLoginService;
+import org.eclipse.jetty.security.LoginService;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.GzipHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.security.Constraint;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Assembles the jetty server from <tt>sonian.elasticsearch.http.jetty</tt> settings without parsing any
+ * jetty xml configuration files. Used when <tt>config_type</tt> is set to <tt>settings</tt>.
+ *
+ * @author imotov
+ */
+public class JettyServerBuilder {
+
+    private final Settings componentSettings;
+
+    private final Environment environment;
+
+    private final Client client;
+
+    public JettyServerBuilder(Settings componentSettings, Environment environment, Client client) {
+        this.componentSettings = componentSettings;
+        this.environment = environment;
+        this.client = client;
+    }
+
+    /**
+     * Builds the server with a single connector on the given host and port. The server is not started.
+     */
+    public Server build(JettyHttpServerTransport transport, String bindHost, int port) {
+        Server server = new Server();
+        server.setThreadPool(threadPool("jetty", componentSettings));
+
+        SelectChannelConnector connector = new SelectChannelConnector();
+        configureConnector(connector, componentSettings, bindHost);
+        connector.setPort(port);
+        server.addConnector(connector);
+
+        JettyHttpServerTransportHandler transportHandler = new JettyHttpServerTransportHandler();
+        transportHandler.setTransport(transport);
+        Handler handler = transportHandler;
+
+        Map<String, Settings> constraints = componentSettings.getGroups("constraints");
+        LoginService loginService = loginService(componentSettings.getByPrefix("auth."));
+        if (loginService != null) {
+            server.addBean(loginService);
+        }
+        if (!constraints.isEmpty()) {
+            RestConstraintSecurityHandler securityHandler = new RestConstraintSecurityHandler();
+            securityHandler.setHandler(handler);
+            if (loginService != null) {
+                securityHandler.setLoginService(loginService);
+                securityHandler.setRealmName(loginService.getName());
+            }
+            for (Map.Entry<String, Settings> entry : constraints.entrySet()) {
+                ConstraintMapping mapping = constraintMapping(entry.getKey(), entry.getValue());
+                if (mapping.getConstraint().getAuthenticate() && loginService == null) {
+                    throw new ElasticsearchIllegalArgumentException("Constraint [" + entry.getKey() + "] requires authentication but auth.type is not set");
+                }
+                securityHandler.addConstraintMapping(mapping);
+            }
+            handler = securityHandler;
+        }
+
+        if (componentSettings.getAsBoolean("gzip_handler", false)) {
+            GzipHandler gzipHandler = new GzipHandler();
+            gzipHandler.setHandler(handler);
+            handler = gzipHandler;
+        }
+        server.setHandler(handler);
+        server.addBean(new JettyHttpServerErrorHandler());
+        return server;
+    }
+
+    private LoginService loginService(Settings authSettings) {
+        String type = authSettings.get("type", "none");
+        String realm = authSettings.get("realm", "DefaultRealm");
+        if ("none".equals(type)) {
+            return null;
+        } else if ("hash".equals(type)) {
+            HashLoginService loginService = new HashLoginService(realm);
+            loginService.setConfig(authSettings.get("hash.config",
+                    new File(environment.configFile(), "realm.properties").getAbsolutePath()));
+            loginService.setRefreshInterval((int) authSettings.getAsTime("hash.refresh_interval", TimeValue.timeValueSeconds(5)).seconds());
+            return loginService;
+        } else if ("es".equals(type)) {
+            ESLoginService loginService = new ESLoginService(realm);
+            loginService.setClient(client);
+            loginService.setAuthIndex(authSettings.get("es.index", "auth"));
+            loginService.setAuthType(authSettings.get("es.type", "user"));
+            loginService.setCacheTime((int) authSettings.getAsTime("es.cache_time", TimeValue.timeValueMinutes(5)).millis());
+            return loginService;
+        }
+        throw new ElasticsearchIllegalArgumentException("Unknown auth type [" + type + "]");
+    }
+
+    private ConstraintMapping constraintMapping(String name, Settings constraintSettings) {
+        String[] paths = constraintSettings.getAsArray("path");
+        if (paths.length == 0) {
+            throw new ElasticsearchIllegalArgumentException("Path is not specified for constraint [" + name + "]");
+        }
+        String[] roles = constraintSettings.getAsArray("roles");
+        Constraint constraint = new Constraint();
+        constraint.setName(Constraint.__BASIC_AUTH);
+        constraint.setAuthenticate(constraintSettings.getAsBoolean("authenticate", roles.length > 0));
+        if (roles.length > 0) {
+            constraint.setRoles(roles);
+        }
+        ConstraintMapping mapping = new ConstraintMapping();
+        String method = constraintSettings.get("method");
+        if (method != null) {
+            mapping.setMethod(method);
+        }
+        mapping.setPathSpec(Strings.arrayToCommaDelimitedString(paths));
+        mapping.setConstraint(constraint);
+        return mapping;
+    }
+
+    /**
+     * Applies <tt>bind_host</tt>, <tt>max_idle_time</tt>, <tt>acceptors</tt> and header and buffer size
+     * settings to the connector
+     */
+    static void configureConnector(SelectChannelConnector connector, Settings connectorSettings, String defaultHost) {
+        connector.setHost(connectorSettings.get("bind_host", defaultHost));
+        connector.setMaxIdleTime((int) connectorSettings.getAsTime("max_idle_time", TimeValue.timeValueMinutes(10)).millis());
+        connector.setAcceptors(connectorSettings.getAsInt("acceptors", 2));
+        connector.setStatsOn(true);
+        if (connectorSettings.get("request_header_size") != null) {
+            connector.setRequestHeaderSize((int) connectorSettings.getAsBytesSize("request_header_size", null).bytes());
+        }
+        if (connectorSettings.get("request_buffer_size") != null) {
+            connector.setRequestBufferSize((int) connectorSettings.getAsBytesSize("request_buffer_size", null).bytes());
+        }
+        if (connectorSettings.get("response_header_size") != null) {
+            connector.setResponseHeaderSize((int) connectorSettings.getAsBytesSize("response_header_size", null).bytes());
+        }
+        if (connectorSettings.get("response_buffer_size") != null) {
+            connector.setResponseBufferSize((int) connectorSettings.getAsBytesSize("response_buffer_size", null).bytes());
+        }
+    }
+
+    /**
+     * Creates a thread pool sized by <tt>min_threads</tt> and <tt>max_threads</tt> settings
+     */
+    static QueuedThreadPool threadPool(String name, Settings threadPoolSettings) {
+        QueuedThreadPool threadPool = new QueuedThreadPool();
+        threadPool.setName(name);
+        threadPool.setMinThreads(threadPoolSettings.getAsInt("min_threads", 8));
+        threadPool.setMaxThreads(threadPoolSettings.getAsInt("max_threads", 254));
+        return threadPool;
+    }
+}
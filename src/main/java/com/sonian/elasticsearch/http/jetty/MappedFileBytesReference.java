@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.ByteBufferBytesReference;
+import org.elasticsearch.common.lease.Releasable;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Request body spilled to a memory mapped temporary file. When the reference is closed the file is
+ * deleted and the mapping is released right away, so the disk space of the deleted file is freed
+ * without waiting for the garbage collector. The content must not be accessed after that.
+ *
+ * @author imotov
+ */
+public class MappedFileBytesReference extends ByteBufferBytesReference implements Releasable {
+
+    private final File file;
+
+    private final MappedByteBuffer buffer;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private volatile boolean unmapped;
+
+    public MappedFileBytesReference(File file, MappedByteBuffer buffer) {
+        super(buffer);
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    public File file() {
+        return file;
+    }
+
+    /**
+     * Returns true if the mapping was released by {@link #close()}, false if it's left to the garbage collector
+     */
+    public boolean unmapped() {
+        return unmapped;
+    }
+
+    /**
+     * Deletes the file but leaves the mapping to the garbage collector. Used when the content might
+     * still be read, the disk space is freed once the mapping is collected.
+     */
+    public void delete() {
+        if (closed.compareAndSet(false, true)) {
+            file.delete();
+        }
+    }
+
+    @Override
+    public void close() throws ElasticsearchException {
+        if (closed.compareAndSet(false, true)) {
+            unmapped = unmap(buffer);
+            file.delete();
+        }
+    }
+
+    /**
+     * Releases the mapping using the cleaner of the direct buffer. Returns false if the cleaner is not
+     * accessible on this jvm.
+     */
+    private static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null) {
+                return false;
+            }
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
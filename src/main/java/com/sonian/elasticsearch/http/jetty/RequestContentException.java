@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty;
+
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the request body cannot be accepted, for example because it's too large or
+ * uses an unsupported encoding
+ *
+ * @author imotov
+ */
+public class RequestContentException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public RequestContentException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * Returns the http status that should be sent to the client
+     */
+    public int status() {
+        return status;
+    }
+
+    public RestStatus restStatus() {
+        for (RestStatus restStatus : RestStatus.values()) {
+            if (restStatus.getStatus() == status) {
+                return restStatus;
+            }
+        }
+        return RestStatus.BAD_REQUEST;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
+import org.elasticsearch.common.util.BigArrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads request bodies. Bodies are decoded according to their <tt>Content-Encoding</tt> and kept in
+ * recycled pages, bodies larger than the spill threshold are written to a temporary file that is
+ * memory mapped instead.
+ *
+ * @author imotov
+ */
+public class RequestContentReader {
+
+    public static final long DEFAULT_MAX_DECODED_SIZE = 100 * 1024 * 1024;
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final BigArrays bigArrays;
+
+    private final long maxContentLength;
+
+    private final long maxDecodedSize;
+
+    private final long spillThreshold;
+
+    private final File spillDirectory;
+
+    public RequestContentReader(BigArrays bigArrays) {
+        this(bigArrays, Long.MAX_VALUE, DEFAULT_MAX_DECODED_SIZE, -1, null);
+    }
+
+    /**
+     * @param maxContentLength maximum length of the body as it's received
+     * @param maxDecodedSize   maximum length of an encoded body after it's decoded
+     * @param spillThreshold   bodies larger than this are written to a file in spillDirectory, -1 disables spilling
+     */
+    public RequestContentReader(BigArrays bigArrays, long maxContentLength, long maxDecodedSize,
+                                long spillThreshold, File spillDirectory) {
+        this.bigArrays = bigArrays;
+        this.maxContentLength = maxContentLength;
+        this.maxDecodedSize = maxDecodedSize;
+        this.spillThreshold = spillDirectory != null ? spillThreshold : -1;
+        this.spillDirectory = spillDirectory;
+    }
+
+    public BytesReference read(HttpServletRequest request) throws IOException {
+        int contentLength = request.getContentLength();
+        if (contentLength == 0 || (contentLength < 0 && request.getHeader("Transfer-Encoding") == null)) {
+            return BytesArray.EMPTY;
+        }
+        InputStream in = contentStream(request, maxContentLength, maxDecodedSize);
+        // Content length of the compressed body is only a hint of the decoded size
+        boolean encoded = isEncoded(request);
+        int expectedLength = encoded ? -1 : contentLength;
+        try {
+            if (spillThreshold >= 0 && expectedLength > spillThreshold) {
+                return spill(in, BytesArray.EMPTY);
+            }
+            return readIntoPages(in, expectedLength);
+        } finally {
+            if (encoded) {
+                // Frees the inflater of encoded bodies
+                in.close();
+            }
+        }
+    }
+
+    private BytesReference readIntoPages(InputStream in, int expectedLength) throws IOException {
+        ReleasableBytesStreamOutput out = expectedLength > 0 ?
+                new ReleasableBytesStreamOutput(expectedLength, bigArrays) : new ReleasableBytesStreamOutput(bigArrays);
+        boolean keepPages = false;
+        try {
+            byte[] buffer = new byte[expectedLength > 0 ? Math.min(expectedLength, COPY_BUFFER_SIZE) : COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.writeBytes(buffer, 0, read);
+                if (spillThreshold >= 0 && out.size() > spillThreshold) {
+                    // The body of unknown length turned out to be large, pages are released once it's spilled
+                    return spill(in, out.bytes());
+                }
+            }
+            keepPages = true;
+            return out.bytes();
+        } finally {
+            if (!keepPages) {
+                out.bytes().close();
+            }
+        }
+    }
+
+    /**
+     * Writes the already received part of the body followed by the rest of the stream into a file
+     * and maps the file into memory
+     */
+    private BytesReference spill(InputStream in, BytesReference received) throws IOException {
+        File file = File.createTempFile("request-", ".body", spillDirectory);
+        boolean success = false;
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                received.writeTo(out);
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+            if (file.length() > Integer.MAX_VALUE) {
+                throw new RequestContentException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                        "Request body is larger than [" + Integer.MAX_VALUE + "] bytes");
+            }
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer;
+            try {
+                // The mapping stays valid after the file is closed
+                buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                randomAccessFile.close();
+            }
+            success = true;
+            return new MappedFileBytesReference(file, buffer);
+        } finally {
+            if (!success) {
+                file.delete();
+            }
+        }
+    }
+
+    private static boolean isEncoded(HttpServletRequest request) {
+        String encoding = request.getHeader("Content-Encoding");
+        return encoding != null && !"identity".equalsIgnoreCase(encoding.trim());
+    }
+
+    /**
+     * Checks the declared length of the request body. Requests with a larger body are rejected before the
+     * body is read, so clients waiting for <tt>100 Continue</tt> don't send it at all.
+     */
+    public static void checkContentLength(HttpServletRequest request, long maxContentLength) throws RequestContentException {
+        int contentLength = request.getContentLength();
+        if (contentLength > maxContentLength) {
+            throw new RequestContentException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "Request body of [" + contentLength + "] bytes is larger than [" + maxContentLength + "] bytes");
+        }
+    }
+
+    /**
+     * Returns the request body decoded according to the <tt>Content-Encoding</tt> header. Reading more than
+     * maxContentLength bytes of the body, or more than maxDecodedSize bytes from an encoded body, fails with
+     * {@link RequestContentException}.
+     */
+    public static InputStream contentStream(HttpServletRequest request, long maxContentLength, long maxDecodedSize) throws IOException {
+        checkContentLength(request, maxContentLength);
+        InputStream in = request.getInputStream();
+        if (request.getContentLength() < 0 && maxContentLength < Long.MAX_VALUE) {
+            // Chunked body, the length is only known once it's read
+            in = new LimitedInputStream(in, maxContentLength, "Request body");
+        }
+        String encoding = request.getHeader("Content-Encoding");
+        if (encoding == null) {
+            return in;
+        }
+        encoding = encoding.trim().toLowerCase(Locale.ROOT);
+        if ("identity".equals(encoding)) {
+            return in;
+        } else if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            in = new GZIPInputStream(in, COPY_BUFFER_SIZE);
+        } else if ("deflate".equals(encoding)) {
+            in = new InflaterInputStream(in);
+        } else {
+            throw new RequestContentException(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+                    "Unsupported content encoding [" + encoding + "]");
+        }
+        return new LimitedInputStream(in, maxDecodedSize, "Decoded request body");
+    }
+
+    /**
+     * Fails when more than the limit is read from the decoded stream
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private final long limit;
+
+        private final String description;
+
+        private long count;
+
+        LimitedInputStream(InputStream in, long limit, String description) {
+            super(in);
+            this.limit = limit;
+            this.description = description;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long read) throws RequestContentException {
+            count += read;
+            if (count > limit) {
+                throw new RequestContentException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                        description + " is larger than [" + limit + "] bytes");
+            }
+        }
+    }
+}
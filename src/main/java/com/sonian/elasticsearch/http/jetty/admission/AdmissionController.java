@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty.admission;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of requests that are dispatched to elasticsearch at the same time.
+ * <p/>
+ * Requests above <tt>max_in_flight</tt> wait in a queue of at most <tt>max_queue</tt> requests
+ * for up to <tt>queue_timeout</tt>. Requests that don't fit into the queue or time out in it are
+ * shed and should be answered with <tt>429 Too Many Requests</tt>.
+ *
+ * @author imotov
+ */
+public class AdmissionController implements ToXContent {
+
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    private final int maxInFlight;
+
+    private final int maxQueue;
+
+    private final TimeValue queueTimeout;
+
+    private final TimeValue retryAfter;
+
+    private final Semaphore permits;
+
+    private final AtomicInteger queueSize = new AtomicInteger();
+
+    private final CounterMetric accepted = new CounterMetric();
+
+    private final CounterMetric queued = new CounterMetric();
+
+    private final CounterMetric shed = new CounterMetric();
+
+    public AdmissionController(Settings admissionSettings) {
+        this.maxInFlight = admissionSettings.getAsInt("max_in_flight",
+                EsExecutors.boundedNumberOfProcessors(admissionSettings) * 8);
+        this.maxQueue = admissionSettings.getAsInt("max_queue", maxInFlight);
+        this.queueTimeout = admissionSettings.getAsTime("queue_timeout", TimeValue.timeValueSeconds(5));
+        this.retryAfter = admissionSettings.getAsTime("retry_after", TimeValue.timeValueSeconds(1));
+        this.permits = new Semaphore(maxInFlight, true);
+    }
+
+    /**
+     * Admits the request, waiting in the queue if all permits are taken. Returns false if the request
+     * should be shed. Every admitted request has to be released with {@link #release()}.
+     */
+    public boolean admit() {
+        if (permits.tryAcquire()) {
+            accepted.inc();
+            return true;
+        }
+        if (queueSize.incrementAndGet() > maxQueue) {
+            queueSize.decrementAndGet();
+            shed.inc();
+            return false;
+        }
+        queued.inc();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(queueTimeout.millis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        } finally {
+            queueSize.decrementAndGet();
+        }
+        if (acquired) {
+            accepted.inc();
+        } else {
+            shed.inc();
+        }
+        return acquired;
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * Returns the value of the <tt>Retry-After</tt> header for shed requests in seconds
+     */
+    public long retryAfterSeconds() {
+        return Math.max(1, (retryAfter.millis() + 999) / 1000);
+    }
+
+    /**
+     * Answers a rejected request with <tt>429 Too Many Requests</tt> and a <tt>Retry-After</tt> header
+     */
+    public static void sendTooManyRequests(HttpServletResponse response, long retryAfterSeconds) throws IOException {
+        response.setHeader("Retry-After", Long.toString(retryAfterSeconds));
+        response.sendError(TOO_MANY_REQUESTS, "Too Many Requests");
+    }
+
+    public int inFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    public int queueSize() {
+        return queueSize.get();
+    }
+
+    public long accepted() {
+        return accepted.count();
+    }
+
+    public long queued() {
+        return queued.count();
+    }
+
+    public long shed() {
+        return shed.count();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("max_in_flight", maxInFlight);
+        builder.field("max_queue", maxQueue);
+        builder.field("in_flight", inFlight());
+        builder.field("queue_size", queueSize.get());
+        builder.field("accepted", accepted.count());
+        builder.field("queued", queued.count());
+        builder.field("shed", shed.count());
+        return builder;
+    }
+}
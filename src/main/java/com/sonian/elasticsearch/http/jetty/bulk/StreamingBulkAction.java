@@ -0,0 +1,422 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty.bulk;
+
+import com.sonian.elasticsearch.http.jetty.JettyHttpServerRestChannel;
+import com.sonian.elasticsearch.http.jetty.JettyHttpServerRestRequest;
+import com.sonian.elasticsearch.http.jetty.RequestContentException;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.WriteConsistencyLevel;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.replication.ReplicationType;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.path.PathTrie;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.rest.support.RestUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Executes <tt>_bulk</tt> requests while the request body is still being received.
+ * <p/>
+ * The body is split on action and source line boundaries into sub-bulks of roughly
+ * <tt>bulk.chunk_size</tt> bytes that are sent to the node as soon as they fill up. At most
+ * <tt>bulk.max_concurrent_chunks</tt> sub-bulks are executed at the same time, reading of the body
+ * is paused until one of them completes. The results of all sub-bulks are merged into a single
+ * bulk response, the actions of a sub-bulk that failed as a whole are reported as failed items.
+ * If reading or parsing of the body fails after some sub-bulks were submitted, their items are
+ * still reported together with the failure, since they were already executed. Only newline
+ * delimited json bodies are streamed.
+ *
+ * @author imotov
+ */
+public class StreamingBulkAction {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final ESLogger logger;
+
+    private final Client client;
+
+    private final int chunkSize;
+
+    private final int maxConcurrentChunks;
+
+    private final boolean allowExplicitIndex;
+
+    private final PathTrie<Boolean> bulkPaths = new PathTrie<Boolean>(RestUtils.REST_DECODER);
+
+    public StreamingBulkAction(Settings settings, Settings componentSettings, Client client, ESLogger logger) {
+        this.logger = logger;
+        this.client = client;
+        this.chunkSize = (int) componentSettings.getAsBytesSize("bulk.chunk_size", new ByteSizeValue(5 * 1024 * 1024)).bytes();
+        this.maxConcurrentChunks = componentSettings.getAsInt("bulk.max_concurrent_chunks", 2);
+        // Same setting as the one used by the elasticsearch bulk rest action
+        this.allowExplicitIndex = settings.getAsBoolean("rest.action.multi.allow_explicit_index", true);
+        bulkPaths.insert("/_bulk", Boolean.TRUE);
+        bulkPaths.insert("/{index}/_bulk", Boolean.TRUE);
+        bulkPaths.insert("/{index}/{type}/_bulk", Boolean.TRUE);
+    }
+
+    /**
+     * Returns true if the request is a bulk request that can be streamed
+     */
+    public boolean canHandle(HttpServletRequest request) {
+        String method = request.getMethod();
+        if (!"POST".equals(method) && !"PUT".equals(method)) {
+            return false;
+        }
+        String contentType = request.getContentType();
+        if (contentType != null && XContentType.fromRestContentType(contentType) != null
+                && XContentType.fromRestContentType(contentType) != XContentType.JSON) {
+            return false;
+        }
+        return bulkPaths.retrieve(JettyHttpServerRestRequest.requestPath(request)) != null;
+    }
+
+    /**
+     * Executes the bulk request reading its body from the decoded request stream
+     */
+    public void execute(InputStream in, JettyHttpServerRestRequest restRequest, JettyHttpServerRestChannel channel) throws IOException {
+        long startTime = System.currentTimeMillis();
+        bulkPaths.retrieve(restRequest.rawPath(), restRequest.params());
+        BulkExecution execution = new BulkExecution(restRequest);
+        try {
+            execution.read(in);
+        } catch (Exception e) {
+            execution.fail(e);
+        }
+        execution.awaitCompletion();
+
+        Throwable failure = execution.failure.get();
+        if (failure != null && execution.responses.isEmpty()) {
+            // Nothing was executed yet, so the request can be safely retried
+            channel.sendResponse(new BytesRestResponse(channel, status(failure), failure));
+            return;
+        }
+        if (execution.responses.isEmpty()) {
+            channel.sendResponse(new BytesRestResponse(channel, RestStatus.BAD_REQUEST, new BulkRequest().validate()));
+            return;
+        }
+
+        List<BulkItemResponse> items = new ArrayList<BulkItemResponse>();
+        for (BulkResponse response : execution.responses) {
+            Collections.addAll(items, response.getItems());
+        }
+        BulkResponse bulkResponse = new BulkResponse(items.toArray(new BulkItemResponse[items.size()]),
+                System.currentTimeMillis() - startTime);
+        XContentBuilder builder = channel.newBuilder();
+        // Sub-bulks that were submitted before a failure are reported, the rest of the body was not executed
+        buildResponse(bulkResponse, failure, builder);
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+
+    private class BulkExecution {
+        private final JettyHttpServerRestRequest restRequest;
+
+        private final Semaphore permits = new Semaphore(maxConcurrentChunks);
+
+        private final List<BulkResponse> responses = Collections.synchronizedList(new ArrayList<BulkResponse>());
+
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        private byte[] buffer = new byte[chunkSize + READ_BUFFER_SIZE];
+
+        // Number of bytes in buffer
+        private int length;
+
+        // Start of the line that is not terminated yet
+        private int lineStart;
+
+        // End of the last complete action
+        private int boundary;
+
+        private boolean expectSource;
+
+        BulkExecution(JettyHttpServerRestRequest restRequest) {
+            this.restRequest = restRequest;
+        }
+
+        void read(InputStream in) throws Exception {
+            while (failure.get() == null) {
+                if (buffer.length - length < READ_BUFFER_SIZE) {
+                    // A single action is larger than the chunk
+                    byte[] newBuffer = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, newBuffer, 0, length);
+                    buffer = newBuffer;
+                }
+                int read = in.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    break;
+                }
+                int scanFrom = length;
+                length += read;
+                for (int i = scanFrom; i < length; i++) {
+                    if (buffer[i] == '\n') {
+                        processLine(lineStart, i);
+                        lineStart = i + 1;
+                    }
+                }
+                if (boundary >= chunkSize) {
+                    submit(boundary);
+                }
+            }
+            if (lineStart < length) {
+                // The last line doesn't have to be terminated, but bulk request ignores unterminated lines
+                buffer[length] = '\n';
+                processLine(lineStart, length);
+                length++;
+                lineStart = length;
+            }
+            if (length > 0 && failure.get() == null) {
+                submit(length);
+            }
+        }
+
+        /**
+         * Processes the line between start and end, the line is terminated by a new line at the end position
+         */
+        private void processLine(int start, int end) throws IOException {
+            if (isBlank(start, end)) {
+                return;
+            }
+            if (expectSource) {
+                expectSource = false;
+                boundary = end + 1;
+            } else if ("delete".equals(action(start, end))) {
+                boundary = end + 1;
+            } else {
+                expectSource = true;
+            }
+        }
+
+        private boolean isBlank(int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (!Character.isWhitespace(buffer[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String action(int start, int end) throws IOException {
+            XContentParser parser = JsonXContent.jsonXContent.createParser(buffer, start, end - start);
+            try {
+                if (parser.nextToken() == XContentParser.Token.START_OBJECT && parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                    return parser.currentName();
+                }
+                return null;
+            } catch (IOException e) {
+                throw new ElasticsearchParseException("Failed to parse bulk action", e);
+            } finally {
+                parser.close();
+            }
+        }
+
+        private void submit(int end) throws Exception {
+            BulkRequest bulkRequest = new BulkRequest();
+            bulkRequest.listenerThreaded(false);
+            String replicationType = restRequest.param("replication");
+            if (replicationType != null) {
+                bulkRequest.replicationType(ReplicationType.fromString(replicationType));
+            }
+            String consistencyLevel = restRequest.param("consistency");
+            if (consistencyLevel != null) {
+                bulkRequest.consistencyLevel(WriteConsistencyLevel.fromString(consistencyLevel));
+            }
+            if (restRequest.hasParam("timeout")) {
+                bulkRequest.timeout(restRequest.paramAsTime("timeout", null));
+            }
+            bulkRequest.refresh(restRequest.paramAsBoolean("refresh", bulkRequest.refresh()));
+            bulkRequest.add(new BytesArray(buffer, 0, end), false, restRequest.param("index"), restRequest.param("type"),
+                    restRequest.param("routing"), null, allowExplicitIndex);
+
+            // The submitted bytes are used by the bulk until it completes, the rest goes into a fresh buffer
+            byte[] newBuffer = new byte[Math.max(chunkSize + READ_BUFFER_SIZE, length - end + READ_BUFFER_SIZE)];
+            System.arraycopy(buffer, end, newBuffer, 0, length - end);
+            buffer = newBuffer;
+            length -= end;
+            lineStart -= end;
+            boundary = 0;
+
+            permits.acquire();
+            final int index;
+            synchronized (responses) {
+                index = responses.size();
+                responses.add(null);
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("submitting sub-bulk [{}] with [{}] actions", index, bulkRequest.numberOfActions());
+            }
+            final BulkRequest request = bulkRequest;
+            client.bulk(bulkRequest, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    responses.set(index, response);
+                    permits.release();
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    // The other sub-bulks might have succeeded, so the failure is reported for each action of this one
+                    logger.debug("sub-bulk [{}] failed", e, index);
+                    responses.set(index, failedResponse(request, e));
+                    permits.release();
+                }
+            });
+        }
+
+        void fail(Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+
+        void awaitCompletion() {
+            permits.acquireUninterruptibly(maxConcurrentChunks);
+            permits.release(maxConcurrentChunks);
+        }
+    }
+
+    /**
+     * Creates a response that reports the failure for every action of the bulk request
+     */
+    static BulkResponse failedResponse(BulkRequest request, Throwable e) {
+        BulkItemResponse[] items = new BulkItemResponse[request.requests().size()];
+        for (int i = 0; i < items.length; i++) {
+            ActionRequest<?> actionRequest = request.requests().get(i);
+            if (actionRequest instanceof IndexRequest) {
+                IndexRequest indexRequest = (IndexRequest) actionRequest;
+                items[i] = new BulkItemResponse(i, indexRequest.opType().toString().toLowerCase(Locale.ROOT),
+                        new BulkItemResponse.Failure(indexRequest.index(), indexRequest.type(), indexRequest.id(), e));
+            } else if (actionRequest instanceof DeleteRequest) {
+                DeleteRequest deleteRequest = (DeleteRequest) actionRequest;
+                items[i] = new BulkItemResponse(i, "delete",
+                        new BulkItemResponse.Failure(deleteRequest.index(), deleteRequest.type(), deleteRequest.id(), e));
+            } else if (actionRequest instanceof UpdateRequest) {
+                UpdateRequest updateRequest = (UpdateRequest) actionRequest;
+                items[i] = new BulkItemResponse(i, "update",
+                        new BulkItemResponse.Failure(updateRequest.index(), updateRequest.type(), updateRequest.id(), e));
+            }
+        }
+        return new BulkResponse(items, 0);
+    }
+
+    static final class Fields {
+        static final XContentBuilderString ITEMS = new XContentBuilderString("items");
+        static final XContentBuilderString ERRORS = new XContentBuilderString("errors");
+        static final XContentBuilderString _INDEX = new XContentBuilderString("_index");
+        static final XContentBuilderString _TYPE = new XContentBuilderString("_type");
+        static final XContentBuilderString _ID = new XContentBuilderString("_id");
+        static final XContentBuilderString STATUS = new XContentBuilderString("status");
+        static final XContentBuilderString ERROR = new XContentBuilderString("error");
+        static final XContentBuilderString TOOK = new XContentBuilderString("took");
+        static final XContentBuilderString _VERSION = new XContentBuilderString("_version");
+        static final XContentBuilderString FOUND = new XContentBuilderString("found");
+    }
+
+    private static RestStatus status(Throwable failure) {
+        if (failure instanceof RequestContentException) {
+            return ((RequestContentException) failure).restStatus();
+        }
+        return ExceptionsHelper.status(failure);
+    }
+
+    /**
+     * Writes the response in the same format as the elasticsearch bulk rest action. If reading of the body
+     * failed, the failure is added as the <tt>error</tt> and <tt>status</tt> of the whole request.
+     */
+    static void buildResponse(BulkResponse response, Throwable failure, XContentBuilder builder) throws IOException {
+        builder.startObject();
+        builder.field(Fields.TOOK, response.getTookInMillis());
+        builder.field(Fields.ERRORS, response.hasFailures() || failure != null);
+        if (failure != null) {
+            builder.field(Fields.ERROR, ExceptionsHelper.detailedMessage(failure));
+            builder.field(Fields.STATUS, status(failure).getStatus());
+        }
+        builder.startArray(Fields.ITEMS);
+        for (BulkItemResponse itemResponse : response) {
+            builder.startObject();
+            builder.startObject(itemResponse.getOpType());
+            builder.field(Fields._INDEX, itemResponse.getIndex());
+            builder.field(Fields._TYPE, itemResponse.getType());
+            builder.field(Fields._ID, itemResponse.getId());
+            long version = itemResponse.getVersion();
+            if (version != -1) {
+                builder.field(Fields._VERSION, itemResponse.getVersion());
+            }
+            if (itemResponse.isFailed()) {
+                builder.field(Fields.STATUS, itemResponse.getFailure().getStatus().getStatus());
+                builder.field(Fields.ERROR, itemResponse.getFailure().getMessage());
+            } else {
+                if (itemResponse.getResponse() instanceof DeleteResponse) {
+                    DeleteResponse deleteResponse = itemResponse.getResponse();
+                    if (deleteResponse.isFound()) {
+                        builder.field(Fields.STATUS, RestStatus.OK.getStatus());
+                    } else {
+                        builder.field(Fields.STATUS, RestStatus.NOT_FOUND.getStatus());
+                    }
+                    builder.field(Fields.FOUND, deleteResponse.isFound());
+                } else if (itemResponse.getResponse() instanceof IndexResponse) {
+                    IndexResponse indexResponse = itemResponse.getResponse();
+                    if (indexResponse.isCreated()) {
+                        builder.field(Fields.STATUS, RestStatus.CREATED.getStatus());
+                    } else {
+                        builder.field(Fields.STATUS, RestStatus.OK.getStatus());
+                    }
+                } else if (itemResponse.getResponse() instanceof UpdateResponse) {
+                    UpdateResponse updateResponse = itemResponse.getResponse();
+                    if (updateResponse.isCreated()) {
+                        builder.field(Fields.STATUS, RestStatus.CREATED.getStatus());
+                    } else {
+                        builder.field(Fields.STATUS, RestStatus.OK.getStatus());
+                    }
+                }
+            }
+            builder.endObject();
+            builder.endObject();
+        }
+        builder.endArray();
+        builder.endObject();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty.compress;
+
+import com.sonian.elasticsearch.http.filter.MethodPathTrie;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestRequest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses responses with gzip if the client accepts it, the response is large enough, has one
+ * of the configured content types and the endpoint isn't excluded from compression.
+ *
+ * @author imotov
+ */
+public class ResponseCompressor implements ToXContent {
+
+    private static final byte[] GZIP_HEADER = new byte[]{
+            (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final int minSize;
+
+    private final String[] contentTypes;
+
+    private final int level;
+
+    private final DeflaterPool deflaterPool;
+
+    private final MethodPathTrie<Boolean> excludedEndpoints = new MethodPathTrie<Boolean>();
+
+    private final CounterMetric compressedResponses = new CounterMetric();
+
+    private final CounterMetric bytesIn = new CounterMetric();
+
+    private final CounterMetric bytesOut = new CounterMetric();
+
+    private final CounterMetric cpuTimeNanos = new CounterMetric();
+
+    public ResponseCompressor(Settings compressionSettings) {
+        this.minSize = (int) compressionSettings.getAsBytesSize("min_size", new ByteSizeValue(1024)).bytes();
+        this.contentTypes = compressionSettings.getAsArray("content_types",
+                new String[]{"application/json", "application/smile"});
+        this.level = compressionSettings.getAsInt("level", 6);
+        this.deflaterPool = new DeflaterPool(level,
+                compressionSettings.getAsInt("pool_size", EsExecutors.boundedNumberOfProcessors(compressionSettings)));
+        for (String endpoint : compressionSettings.getAsArray("exclude")) {
+            // Endpoints are specified as "METHOD /path" or as "/path" for all methods
+            String[] parts = endpoint.trim().split("\\s+", 2);
+            if (parts.length == 2) {
+                excludedEndpoints.insert(parts[0], parts[1], Boolean.TRUE);
+            } else {
+                for (RestRequest.Method method : RestRequest.Method.values()) {
+                    excludedEndpoints.insert(method, parts[0], Boolean.TRUE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the response with the given content type can be compressed for this request.
+     * Doesn't depend on the size of the response, so it can be used to decide if the <tt>Vary</tt>
+     * header is needed.
+     */
+    public boolean compressible(RestRequest request, String contentType) {
+        if (contentType == null || !matchesContentType(contentType)) {
+            return false;
+        }
+        return excludedEndpoints.retrieve(request.method(), request.rawPath()) == null;
+    }
+
+    /**
+     * Returns true if the response should be compressed
+     */
+    public boolean shouldCompress(RestRequest request, String contentType, int contentLength) {
+        return contentLength >= minSize && acceptsGzip(request.header("Accept-Encoding"))
+                && compressible(request, contentType);
+    }
+
+    private boolean matchesContentType(String contentType) {
+        String type = contentType.toLowerCase(Locale.ROOT);
+        for (String allowed : contentTypes) {
+            if (type.startsWith(allowed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] parts = encoding.trim().split(";");
+            if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            return Float.parseFloat(param.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns gzip compressed content
+     */
+    public BytesReference compress(BytesReference content) throws IOException {
+        long startCpuTime = cpuTime();
+        Deflater deflater = deflaterPool.acquire();
+        try {
+            BytesStreamOutput out = new BytesStreamOutput(Math.max(64, content.length() / 4));
+            out.writeBytes(GZIP_HEADER);
+            DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater, 8192);
+            CRC32 crc = new CRC32();
+            content.writeTo(new CheckedOutputStream(deflaterOut, crc));
+            deflaterOut.finish();
+            writeIntLE(out, (int) crc.getValue());
+            writeIntLE(out, content.length());
+            BytesReference compressed = out.bytes();
+            compressedResponses.inc();
+            bytesIn.inc(content.length());
+            bytesOut.inc(compressed.length());
+            return compressed;
+        } finally {
+            deflaterPool.release(deflater);
+            cpuTimeNanos.inc(cpuTime() - startCpuTime);
+        }
+    }
+
+    private static void writeIntLE(BytesStreamOutput out, int value) throws IOException {
+        out.writeByte((byte) value);
+        out.writeByte((byte) (value >> 8));
+        out.writeByte((byte) (value >> 16));
+        out.writeByte((byte) (value >> 24));
+    }
+
+    private static long cpuTime() {
+        if (THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) {
+            return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    public long compressedResponses() {
+        return compressedResponses.count();
+    }
+
+    public long bytesSaved() {
+        return bytesIn.count() - bytesOut.count();
+    }
+
+    public void close() {
+        deflaterPool.close();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("level", level);
+        builder.field("min_size_in_bytes", minSize);
+        builder.field("compressed_responses", compressedResponses.count());
+        builder.field("bytes_in", bytesIn.count());
+        builder.field("bytes_out", bytesOut.count());
+        builder.field("bytes_saved", bytesSaved());
+        builder.field("cpu_time_in_millis", TimeValue.timeValueNanos(cpuTimeNanos.count()).millis());
+        builder.field("pooled_deflaters", deflaterPool.pooled());
+        return builder;
+    }
+}
@@ -17,29 +17,59 @@ package com.sonian.elasticsearch.http.jetty.handler;
 
 import com.sonian.elasticsearch.http.jetty.JettyHttpServerRestChannel;
 import com.sonian.elasticsearch.http.jetty.JettyHttpServerRestRequest;
+import com.sonian.elasticsearch.http.jetty.RequestContentException;
+import com.sonian.elasticsearch.http.jetty.RequestContentReader;
+import com.sonian.elasticsearch.http.jetty.admission.AdmissionController;
+import com.sonian.elasticsearch.http.jetty.bulk.StreamingBulkAction;
+import com.sonian.elasticsearch.http.jetty.priority.PriorityLanes;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.elasticsearch.common.Classes;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import com.sonian.elasticsearch.http.jetty.JettyHttpServerTransport;
 import org.elasticsearch.http.HttpServerAdapter;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * @author imotov
  */
 public class JettyHttpServerTransportHandler extends AbstractHandler {
 
+    // Set on requests that release their admission permit once they are completed
+    private static final String RELEASE_ON_COMPLETE = JettyHttpServerTransportHandler.class.getName() + ".releaseOnComplete";
+
     private volatile JettyHttpServerTransport transport;
 
     protected volatile ESLogger logger;
 
+    private volatile Boolean async;
+
+    private volatile Long asyncTimeout;
+
+    private volatile Integer chunkedResponseThreshold;
+
+    private volatile Integer responseChunkSize;
+
+    private volatile Boolean directWrites;
+
+    private volatile Long maxDecodedContentLength;
+
+    private volatile RequestContentReader contentReader;
+
     @Override
     protected void doStart() throws Exception {
         super.doStart();
@@ -52,25 +82,79 @@ public class JettyHttpServerTransportHandler extends AbstractHandler {
             }
             setTransport(transport);
         }
+        contentReader = new RequestContentReader(transport.bigArrays(), transport.maxContentLength().bytes(),
+                getMaxDecodedContentLength(), transport.spillThreshold(), transport.spillDirectory());
     }
 
     @Override
     protected void doStop() throws Exception {
         this.transport = null;
         this.logger = null;
+        this.contentReader = null;
         super.doStop();
     }
 
     public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
-        HttpServerAdapter adapter = getTransport().httpServerAdapter();
-        JettyHttpServerRestRequest restRequest = new JettyHttpServerRestRequest(request);
-        JettyHttpServerRestChannel restChannel = new JettyHttpServerRestChannel(restRequest, response);
+        JettyHttpServerTransport transport = getTransport();
+        HttpServerAdapter adapter = transport.httpServerAdapter(baseRequest.getConnection() != null ?
+                baseRequest.getConnection().getConnector() : null);
+        AdmissionController admissionController = transport.admissionController();
+        if (admissionController == null) {
+            handleRequest(adapter, null, baseRequest, request, response);
+            return;
+        }
+        if (!admissionController.admit()) {
+            baseRequest.setHandled(true);
+            AdmissionController.sendTooManyRequests(response, admissionController.retryAfterSeconds());
+            return;
+        }
+        try {
+            handleRequest(adapter, admissionController, baseRequest, request, response);
+        } finally {
+            // Suspended requests are released once they are completed, even if handleRequest failed after
+            // the request was suspended
+            if (request.getAttribute(RELEASE_ON_COMPLETE) == null) {
+                admissionController.release();
+            }
+        }
+    }
+
+    /**
+     * Handles the request, suspended requests are completed asynchronously
+     */
+    private void handleRequest(HttpServerAdapter adapter, AdmissionController admissionController, Request baseRequest,
+                               HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        StreamingBulkAction streamingBulkAction = transport.streamingBulkAction();
+        if (streamingBulkAction != null && streamingBulkAction.canHandle(request)) {
+            handleStreamingBulk(streamingBulkAction, baseRequest, request, response);
+            return;
+        }
+        JettyHttpServerRestRequest restRequest;
+        try {
+            restRequest = new JettyHttpServerRestRequest(request, contentReader);
+        } catch (RequestContentException e) {
+            baseRequest.setHandled(true);
+            response.sendError(e.status(), e.getMessage());
+            return;
+        }
+        PriorityLanes priorityLanes = transport.priorityLanes();
+        if (priorityLanes != null && request.isAsyncSupported()) {
+            handleInLane(priorityLanes, adapter, admissionController, baseRequest, restRequest,
+                    request, response);
+            return;
+        }
+        if (isAsync() && request.isAsyncSupported()) {
+            handleAsync(adapter, admissionController, baseRequest, restRequest, request, response);
+            return;
+        }
+        JettyHttpServerRestChannel restChannel = newRestChannel(restRequest, response, null);
         try {
             adapter.dispatchRequest(restRequest, restChannel);
             restChannel.await();
         } catch (InterruptedException e) {
             throw new ServletException("failed to dispatch request", e);
         } catch (Exception e) {
+            restRequest.release();
             throw new IOException("failed to dispatch request", e);
         }
         if (restChannel.sendFailure() != null) {
@@ -78,6 +162,119 @@ public class JettyHttpServerTransportHandler extends AbstractHandler {
         }
     }
 
+    /**
+     * Suspends the request and returns the jetty thread to the pool. The response is written
+     * and the request is completed by the channel on the thread that calls sendResponse.
+     */
+    private void handleAsync(HttpServerAdapter adapter, AdmissionController admissionController, Request baseRequest,
+                             JettyHttpServerRestRequest restRequest, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        AsyncContext asyncContext = suspend(admissionController, baseRequest, request, response);
+        JettyHttpServerRestChannel restChannel = newRestChannel(restRequest, response, asyncContext);
+        try {
+            adapter.dispatchRequest(restRequest, restChannel);
+        } catch (Exception e) {
+            logger.warn("failed to dispatch request", e);
+            restChannel.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Suspends the request and dispatches it on a thread of the priority lane. The lane thread waits
+     * for the response, so the size of the lane limits the number of requests of its class in flight.
+     * Requests that don't fit into the lane queue are rejected with <tt>429 Too Many Requests</tt> and a
+     * <tt>Retry-After</tt> header.
+     */
+    private void handleInLane(PriorityLanes priorityLanes, final HttpServerAdapter adapter,
+                              AdmissionController admissionController, Request baseRequest,
+                              final JettyHttpServerRestRequest restRequest, HttpServletRequest request,
+                              HttpServletResponse response) throws IOException {
+        AsyncContext asyncContext = suspend(admissionController, baseRequest, request, response);
+        final JettyHttpServerRestChannel restChannel = newRestChannel(restRequest, response, asyncContext);
+        boolean accepted = priorityLanes.lane(restRequest).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    adapter.dispatchRequest(restRequest, restChannel);
+                    restChannel.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    logger.warn("failed to dispatch request", e);
+                    try {
+                        restChannel.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    } catch (IOException ex) {
+                        logger.debug("failed to send error response", ex);
+                    }
+                }
+            }
+        });
+        if (!accepted) {
+            restChannel.sendTooManyRequests(priorityLanes.retryAfterSeconds());
+        }
+    }
+
+    private AsyncContext suspend(final AdmissionController admissionController, Request baseRequest,
+                                 HttpServletRequest request, HttpServletResponse response) {
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(getAsyncTimeout());
+        if (admissionController != null) {
+            asyncContext.addListener(new AsyncListener() {
+                @Override
+                public void onComplete(AsyncEvent event) throws IOException {
+                    admissionController.release();
+                }
+
+                @Override
+                public void onTimeout(AsyncEvent event) throws IOException {
+                }
+
+                @Override
+                public void onError(AsyncEvent event) throws IOException {
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) throws IOException {
+                }
+            });
+            request.setAttribute(RELEASE_ON_COMPLETE, Boolean.TRUE);
+        }
+        baseRequest.setHandled(true);
+        return asyncContext;
+    }
+
+    /**
+     * Executes a bulk request while its body is being read. The request bypasses the http server
+     * adapter, it's handled on the jetty thread that reads the body. Since the adapter is bypassed, the
+     * filter chain of the filter transport, including metrics, limit and deadline filters, is not applied.
+     */
+    private void handleStreamingBulk(StreamingBulkAction streamingBulkAction, Request baseRequest, HttpServletRequest request,
+                                     HttpServletResponse response) throws IOException {
+        JettyHttpServerRestRequest restRequest = new JettyHttpServerRestRequest(request, BytesArray.EMPTY);
+        InputStream in;
+        try {
+            // Streamed bulk requests are not buffered, so they are not limited by max_content_length
+            in = RequestContentReader.contentStream(request, Long.MAX_VALUE, getMaxDecodedContentLength());
+        } catch (RequestContentException e) {
+            baseRequest.setHandled(true);
+            response.sendError(e.status(), e.getMessage());
+            return;
+        }
+        JettyHttpServerRestChannel restChannel = newRestChannel(restRequest, response, null);
+        streamingBulkAction.execute(in, restRequest, restChannel);
+        if (restChannel.sendFailure() != null) {
+            throw restChannel.sendFailure();
+        }
+    }
+
+    private JettyHttpServerRestChannel newRestChannel(JettyHttpServerRestRequest restRequest, HttpServletResponse response,
+                                                      AsyncContext asyncContext) {
+        JettyHttpServerRestChannel restChannel = new JettyHttpServerRestChannel(restRequest, response, asyncContext);
+        restChannel.chunkedResponses(getChunkedResponseThreshold(), getResponseChunkSize());
+        restChannel.directWrites(isDirectWrites());
+        restChannel.compressor(transport.responseCompressor());
+        return restChannel;
+    }
 
     public JettyHttpServerTransport getTransport() {
         return transport;
@@ -86,9 +283,79 @@ public class JettyHttpServerTransportHandler extends AbstractHandler {
     public void setTransport(JettyHttpServerTransport transport) {
         this.transport = transport;
         this.logger = Loggers.getLogger(buildClassLoggerName(getClass()), transport.settings());
+        // Values set explicitly in jetty.xml take precedence over elasticsearch settings
+        if (async == null) {
+            async = transport.componentSettings().getAsBoolean("async", false);
+        }
+        if (asyncTimeout == null) {
+            asyncTimeout = transport.componentSettings().getAsTime("async_timeout", TimeValue.timeValueMillis(0)).millis();
+        }
+        if (chunkedResponseThreshold == null) {
+            chunkedResponseThreshold = (int) transport.componentSettings().getAsBytesSize("response.chunked_threshold",
+                    new ByteSizeValue(1, ByteSizeUnit.MB)).bytes();
+        }
+        if (maxDecodedContentLength == null) {
+            maxDecodedContentLength = transport.componentSettings().getAsBytesSize("request.max_decoded_size",
+                    new ByteSizeValue(RequestContentReader.DEFAULT_MAX_DECODED_SIZE)).bytes();
+        }
+        if (directWrites == null) {
+            directWrites = transport.componentSettings().getAsBoolean("response.direct_writes", true);
+        }
+        if (responseChunkSize == null) {
+            responseChunkSize = (int) transport.componentSettings().getAsBytesSize("response.chunk_size",
+                    new ByteSizeValue(64, ByteSizeUnit.KB)).bytes();
+        }
+    }
+
+    public boolean isAsync() {
+        return async != null && async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public long getAsyncTimeout() {
+        return asyncTimeout != null ? asyncTimeout : 0;
+    }
+
+    public void setAsyncTimeout(long asyncTimeout) {
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    public int getChunkedResponseThreshold() {
+        return chunkedResponseThreshold != null ? chunkedResponseThreshold : -1;
+    }
+
+    public void setChunkedResponseThreshold(int chunkedResponseThreshold) {
+        this.chunkedResponseThreshold = chunkedResponseThreshold;
+    }
+
+    public int getResponseChunkSize() {
+        return responseChunkSize != null ? responseChunkSize : 0;
+    }
+
+    public void setResponseChunkSize(int responseChunkSize) {
+        this.responseChunkSize = responseChunkSize;
+    }
+
+    public boolean isDirectWrites() {
+        return directWrites == null || directWrites;
+    }
+
+    public void setDirectWrites(boolean directWrites) {
+        this.directWrites = directWrites;
+    }
+
+    public long getMaxDecodedContentLength() {
+        return maxDecodedContentLength != null ? maxDecodedContentLength : RequestContentReader.DEFAULT_MAX_DECODED_SIZE;
+    }
+
+    public void setMaxDecodedContentLength(long maxDecodedContentLength) {
+        this.maxDecodedContentLength = maxDecodedContentLength;
     }
 
-    private static String buildClassLoggerName(Class clazz) {
+    private static String buildClassLoggerName(Class<?> clazz) {
         return Classes.getPackageName(clazz);
     }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty.handler;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandlerContainer;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handler that passes requests to a handler tree that can be replaced while the server is running.
+ * <p/>
+ * New requests go to the new tree as soon as it's started. The old tree is stopped after all requests
+ * it was handling, including suspended ones, are completed. The handler also keeps track of all requests
+ * that are in flight, which allows the transport to drain them on shutdown.
+ *
+ * @author imotov
+ */
+public class ReloadableHandler extends AbstractHandlerContainer {
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+
+    private volatile Generation current;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile boolean draining;
+
+    public ReloadableHandler(Handler handler) {
+        this.current = new Generation(handler, Collections.<LifeCycle>emptyList());
+    }
+
+    public Handler getHandler() {
+        return current.handler;
+    }
+
+    @Override
+    public Handler[] getHandlers() {
+        return new Handler[]{current.handler};
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked"})
+    protected Object expandChildren(Object list, Class<?> byClass) {
+        return expandHandler(current.handler, list, (Class<Handler>) byClass);
+    }
+
+    @Override
+    public void setServer(Server server) {
+        super.setServer(server);
+        current.handler.setServer(server);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        current.handler.start();
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        current.stop();
+    }
+
+    /**
+     * Starts the new handler tree together with the lifecycle objects it depends on and sends all new
+     * requests to it
+     */
+    public synchronized void swap(Handler handler, List<LifeCycle> dependencies) throws Exception {
+        Generation generation = new Generation(handler, dependencies);
+        handler.setServer(getServer());
+        if (isStarted()) {
+            for (LifeCycle dependency : dependencies) {
+                if (!dependency.isRunning()) {
+                    dependency.start();
+                }
+            }
+            handler.start();
+        }
+        Generation old = current;
+        current = generation;
+        old.retire();
+    }
+
+    /**
+     * Returns the number of requests that are currently handled by all handler trees
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Asks clients to close keep-alive connections after the current request
+     */
+    public void drain() {
+        draining = true;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        Generation generation;
+        while (true) {
+            generation = current;
+            generation.active.incrementAndGet();
+            if (generation == current) {
+                break;
+            }
+            // The tree was replaced in the meantime, move to the new one
+            generation.release();
+        }
+        inFlight.incrementAndGet();
+        if (draining) {
+            response.setHeader("Connection", "close");
+        }
+        boolean suspended = false;
+        try {
+            generation.handler.handle(target, baseRequest, request, response);
+            if (baseRequest.isAsyncStarted()) {
+                baseRequest.getAsyncContext().addListener(generation);
+                suspended = true;
+            }
+        } finally {
+            if (!suspended) {
+                generation.complete();
+            }
+        }
+    }
+
+    private class Generation implements AsyncListener {
+
+        private final Handler handler;
+
+        private final List<LifeCycle> dependencies;
+
+        private final AtomicInteger active = new AtomicInteger();
+
+        private final AtomicBoolean stopped = new AtomicBoolean();
+
+        private volatile boolean retired;
+
+        private Generation(Handler handler, List<LifeCycle> dependencies) {
+            this.handler = handler;
+            this.dependencies = dependencies;
+        }
+
+        private void retire() {
+            retired = true;
+            if (active.get() == 0) {
+                stop();
+            }
+        }
+
+        private void release() {
+            if (active.decrementAndGet() == 0 && retired) {
+                stop();
+            }
+        }
+
+        private void complete() {
+            ReloadableHandler.this.inFlight.decrementAndGet();
+            release();
+        }
+
+        private void stop() {
+            if (stopped.compareAndSet(false, true)) {
+                try {
+                    handler.stop();
+                    for (LifeCycle dependency : dependencies) {
+                        dependency.stop();
+                    }
+                } catch (Exception e) {
+                    logger.warn("Failed to stop replaced handler", e);
+                }
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            complete();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+    }
+}
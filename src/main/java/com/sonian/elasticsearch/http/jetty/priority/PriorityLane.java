@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty.priority;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * A bounded executor for one class of requests. At most <tt>size</tt> requests of the class are
+ * in flight at the same time, at most <tt>queue_size</tt> requests wait for a free thread and
+ * the rest are rejected.
+ *
+ * @author imotov
+ */
+public class PriorityLane implements ToXContent {
+
+    private final String name;
+
+    private final int size;
+
+    private final int queueSize;
+
+    private final EsThreadPoolExecutor executor;
+
+    private final CounterMetric rejected = new CounterMetric();
+
+    public PriorityLane(String name, Settings settings, Settings laneSettings, int defaultSize, int defaultQueueSize) {
+        this.name = name;
+        this.size = laneSettings.getAsInt("size", defaultSize);
+        this.queueSize = laneSettings.getAsInt("queue_size", defaultQueueSize);
+        this.executor = EsExecutors.newFixed(size, queueSize, EsExecutors.daemonThreadFactory(settings, "jetty_lane_" + name));
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Executes the task on one of the threads of the lane, returns false if the lane is saturated
+     * and the task was rejected
+     */
+    public boolean execute(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (EsRejectedExecutionException e) {
+            rejected.inc();
+            return false;
+        }
+    }
+
+    public int active() {
+        return executor.getActiveCount();
+    }
+
+    public int queue() {
+        return executor.getQueue().size();
+    }
+
+    public long completed() {
+        return executor.getCompletedTaskCount();
+    }
+
+    public long rejected() {
+        return rejected.count();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(name);
+        builder.field("size", size);
+        builder.field("queue_size", queueSize);
+        builder.field("active", active());
+        builder.field("queue", queue());
+        builder.field("completed", completed());
+        builder.field("rejected", rejected());
+        builder.endObject();
+        return builder;
+    }
+}
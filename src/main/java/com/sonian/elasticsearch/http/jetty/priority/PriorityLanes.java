@@ -0,0 +1,163 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty.priority;
+
+import com.sonian.elasticsearch.http.filter.MethodPathTrie;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestRequest;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.elasticsearch.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * Classifies requests by method and path, or by the lane name in the <tt>X-Priority</tt> header,
+ * and executes each class of requests in its own {@link PriorityLane}, so a burst of bulk requests
+ * doesn't delay searches and cluster health checks. Requests that don't belong to any class are
+ * executed in the <tt>default</tt> lane.
+ *
+ * @author imotov
+ */
+public class PriorityLanes implements ToXContent {
+
+    public static final String DEFAULT_LANE = "default";
+
+    private static final String[] ADMIN_PATHS = new String[]{
+            "/", "/_cluster/health", "/_cluster/health/{index}", "/_cluster/state", "/_cluster/pending_tasks",
+            "/_nodes", "/_nodes/stats", "/_nodes/{node_id}", "/_nodes/{node_id}/stats",
+            "/_cat", "/_cat/{action}", "/_jetty/stats"
+    };
+
+    private static final String[] SEARCH_PATHS = new String[]{
+            "/_search", "/{index}/_search", "/{index}/{type}/_search",
+            "/_search/scroll", "/_search/scroll/{scroll_id}",
+            "/_msearch", "/{index}/_msearch", "/{index}/{type}/_msearch",
+            "/_count", "/{index}/_count", "/{index}/{type}/_count",
+            "/_mget", "/{index}/_mget", "/{index}/{type}/_mget"
+    };
+
+    private static final String[] BULK_PATHS = new String[]{
+            "/_bulk", "/{index}/_bulk", "/{index}/{type}/_bulk"
+    };
+
+    private final ESLogger logger;
+
+    private final String header;
+
+    private final TimeValue retryAfter;
+
+    private final MethodPathTrie<PriorityLane> routes = new MethodPathTrie<PriorityLane>();
+
+    private final Map<String, PriorityLane> lanes;
+
+    private final PriorityLane defaultLane;
+
+    public PriorityLanes(Settings settings, Settings prioritySettings, ESLogger logger) {
+        this.logger = logger;
+        this.header = prioritySettings.get("header", "X-Priority");
+        this.retryAfter = prioritySettings.getAsTime("retry_after", TimeValue.timeValueSeconds(1));
+        int processors = EsExecutors.boundedNumberOfProcessors(settings);
+        Map<String, PriorityLane> lanes = newLinkedHashMap();
+        Map<String, Settings> laneGroups = prioritySettings.getGroups("lanes");
+        if (laneGroups.isEmpty()) {
+            lanes.put("admin", register("admin", settings, new String[]{"GET", "HEAD"}, ADMIN_PATHS,
+                    ImmutableSettings.EMPTY, 2, 100));
+            lanes.put("search", register("search", settings, new String[]{"GET", "POST"}, SEARCH_PATHS,
+                    ImmutableSettings.EMPTY, processors * 3, 1000));
+            lanes.put("bulk", register("bulk", settings, new String[]{"POST", "PUT"}, BULK_PATHS,
+                    ImmutableSettings.EMPTY, processors, 50));
+        } else {
+            for (Map.Entry<String, Settings> lane : laneGroups.entrySet()) {
+                if (DEFAULT_LANE.equals(lane.getKey())) {
+                    continue;
+                }
+                Settings laneSettings = lane.getValue();
+                lanes.put(lane.getKey(), register(lane.getKey(), settings,
+                        laneSettings.getAsArray("method", new String[]{"GET", "POST", "PUT", "DELETE", "HEAD"}),
+                        laneSettings.getAsArray("path"), laneSettings, processors, 1000));
+            }
+        }
+        Settings defaultLaneSettings = laneGroups.containsKey(DEFAULT_LANE) ? laneGroups.get(DEFAULT_LANE) : ImmutableSettings.EMPTY;
+        this.defaultLane = new PriorityLane(DEFAULT_LANE, settings, defaultLaneSettings, processors * 4, 1000);
+        lanes.put(DEFAULT_LANE, defaultLane);
+        this.lanes = ImmutableMap.copyOf(lanes);
+    }
+
+    private PriorityLane register(String name, Settings settings, String[] methods, String[] paths,
+                                  Settings laneSettings, int defaultSize, int defaultQueueSize) {
+        PriorityLane lane = new PriorityLane(name, settings, laneSettings, defaultSize, defaultQueueSize);
+        for (String method : methods) {
+            for (String path : paths) {
+                if (!routes.insert(method.trim(), path, lane)) {
+                    logger.warn("Ambiguous path " + path + " for method " + method);
+                }
+            }
+        }
+        return lane;
+    }
+
+    /**
+     * Returns the lane the request should be executed in. The lane named in the priority header takes
+     * precedence over the lane matching the method and path of the request.
+     */
+    public PriorityLane lane(RestRequest request) {
+        if (Strings.hasLength(header)) {
+            String laneName = request.header(header);
+            if (laneName != null) {
+                PriorityLane lane = lanes.get(laneName.trim());
+                if (lane != null) {
+                    return lane;
+                }
+            }
+        }
+        PriorityLane lane = routes.retrieve(request.method(), request.rawPath());
+        return lane != null ? lane : defaultLane;
+    }
+
+    public PriorityLane lane(String name) {
+        return lanes.get(name);
+    }
+
+    /**
+     * Returns the value of the <tt>Retry-After</tt> header for requests rejected by a full lane in seconds
+     */
+    public long retryAfterSeconds() {
+        return Math.max(1, (retryAfter.millis() + 999) / 1000);
+    }
+
+    public void close() {
+        for (PriorityLane lane : lanes.values()) {
+            lane.close();
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        for (PriorityLane lane : lanes.values()) {
+            lane.toXContent(builder, params);
+        }
+        return builder;
+    }
+}
@@ -15,15 +15,21 @@
  */
 package com.sonian.elasticsearch.plugin.jetty;
 
+import com.sonian.elasticsearch.rest.action.jetty.RestJettyReloadAction;
+import com.sonian.elasticsearch.rest.action.jetty.RestJettyStatsAction;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
 
 /**
  * @author imotov
  */
 public class JettyPlugin extends AbstractPlugin {
 
+    private final Settings settings;
+
     public JettyPlugin(Settings settings) {
+        this.settings = settings;
     }
 
     @Override public String name() {
@@ -33,4 +39,12 @@ public class JettyPlugin extends AbstractPlugin {
     @Override public String description() {
         return "Jetty Plugin Version: " + Version.number() + " (" + Version.date() + ")";
     }
+
+    public void onModule(RestModule restModule) {
+        // Rest actions need an http transport to report on
+        if (settings.getAsBoolean("http.enabled", true)) {
+            restModule.addRestAction(RestJettyStatsAction.class);
+            restModule.addRestAction(RestJettyReloadAction.class);
+        }
+    }
 }
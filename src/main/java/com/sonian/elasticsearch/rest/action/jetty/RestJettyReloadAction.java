@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.rest.action.jetty;
+
+import com.sonian.elasticsearch.http.jetty.JettyHttpServerTransport;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.http.HttpServerTransport;
+import org.elasticsearch.rest.*;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Reloads jetty configuration of the node at <tt>/_jetty/reload</tt>
+ *
+ * @author imotov
+ */
+public class RestJettyReloadAction extends BaseRestHandler {
+
+    private final HttpServerTransport httpServerTransport;
+
+    @Inject
+    public RestJettyReloadAction(Settings settings, Client client, RestController controller,
+                                 HttpServerTransport httpServerTransport) {
+        super(settings, client);
+        this.httpServerTransport = httpServerTransport;
+        controller.registerHandler(POST, "/_jetty/reload", this);
+    }
+
+    @Override
+    public void handleRequest(RestRequest request, RestChannel channel) throws Exception {
+        JettyHttpServerTransport jettyTransport = RestJettyStatsAction.jettyTransport(httpServerTransport);
+        if (jettyTransport == null) {
+            channel.sendResponse(new BytesRestResponse(RestStatus.BAD_REQUEST, "Jetty transport is not used"));
+            return;
+        }
+        try {
+            jettyTransport.reload();
+        } catch (Exception e) {
+            channel.sendResponse(new BytesRestResponse(channel, e));
+            return;
+        }
+        XContentBuilder builder = channel.newBuilder();
+        builder.startObject().field("acknowledged", true).endObject();
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.rest.action.jetty;
+
+import com.sonian.elasticsearch.http.filter.FilterHttpServerAdapter;
+import com.sonian.elasticsearch.http.filter.FilterHttpServerTransport;
+import com.sonian.elasticsearch.http.jetty.JettyHttpServerTransport;
+import org.eclipse.jetty.server.AbstractConnector;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.http.HttpServerTransport;
+import org.elasticsearch.rest.*;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * Reports statistics collected by the jetty plugin at <tt>/_jetty/stats</tt>
+ *
+ * @author imotov
+ */
+public class RestJettyStatsAction extends BaseRestHandler {
+
+    private final HttpServerTransport httpServerTransport;
+
+    @Inject
+    public RestJettyStatsAction(Settings settings, Client client, RestController controller,
+                                HttpServerTransport httpServerTransport) {
+        super(settings, client);
+        this.httpServerTransport = httpServerTransport;
+        controller.registerHandler(GET, "/_jetty/stats", this);
+    }
+
+    @Override
+    public void handleRequest(RestRequest request, RestChannel channel) throws Exception {
+        XContentBuilder builder = channel.newBuilder();
+        builder.startObject();
+        builder.startObject("filters");
+        if (httpServerTransport instanceof FilterHttpServerTransport) {
+            FilterHttpServerTransport filterTransport = (FilterHttpServerTransport) httpServerTransport;
+            for (String filterName : filterTransport.filterNames()) {
+                FilterHttpServerAdapter filter = filterTransport.filter(filterName);
+                if (filter instanceof ToXContent) {
+                    builder.startObject(filterName);
+                    ((ToXContent) filter).toXContent(builder, request);
+                    builder.endObject();
+                }
+            }
+        }
+        builder.endObject();
+        if (httpServerTransport instanceof FilterHttpServerTransport
+                && ((FilterHttpServerTransport) httpServerTransport).filterTimings() != null) {
+            builder.startObject("filter_timings");
+            ((FilterHttpServerTransport) httpServerTransport).filterTimings().toXContent(builder, request);
+            builder.endObject();
+        }
+        JettyHttpServerTransport jettyTransport = jettyTransport(httpServerTransport);
+        if (jettyTransport != null) {
+            builder.startObject("requests");
+            builder.field("in_flight", jettyTransport.inFlightRequests());
+            builder.field("draining", jettyTransport.draining());
+            builder.endObject();
+            builder.startObject("connectors");
+            for (Connector connector : jettyTransport.connectors()) {
+                connectorToXContent(connector, builder);
+            }
+            builder.endObject();
+        }
+        if (jettyTransport != null && jettyTransport.admissionController() != null) {
+            builder.startObject("admission");
+            jettyTransport.admissionController().toXContent(builder, request);
+            builder.endObject();
+        }
+        if (jettyTransport != null && jettyTransport.priorityLanes() != null) {
+            builder.startObject("lanes");
+            jettyTransport.priorityLanes().toXContent(builder, request);
+            builder.endObject();
+        }
+        if (jettyTransport != null && jettyTransport.responseCompressor() != null) {
+            builder.startObject("compression");
+            jettyTransport.responseCompressor().toXContent(builder, request);
+            builder.endObject();
+        }
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+
+    private void connectorToXContent(Connector connector, XContentBuilder builder) throws IOException {
+        builder.startObject(connector.getName());
+        builder.field("host", connector.getHost());
+        builder.field("port", connector.getLocalPort());
+        if (connector instanceof AbstractConnector) {
+            AbstractConnector abstractConnector = (AbstractConnector) connector;
+            builder.field("current_open", abstractConnector.getConnectionsOpen());
+            builder.field("total_opened", abstractConnector.getConnections());
+            builder.field("requests", abstractConnector.getRequests());
+            if (abstractConnector.getThreadPool() instanceof QueuedThreadPool) {
+                QueuedThreadPool threadPool = (QueuedThreadPool) abstractConnector.getThreadPool();
+                builder.startObject("thread_pool");
+                builder.field("name", threadPool.getName());
+                builder.field("threads", threadPool.getThreads());
+                builder.field("idle", threadPool.getIdleThreads());
+                builder.field("max", threadPool.getMaxThreads());
+                builder.endObject();
+            }
+        }
+        builder.endObject();
+    }
+
+    /**
+     * Returns the jetty transport that is either used directly or wrapped by the filter transport
+     */
+    static JettyHttpServerTransport jettyTransport(HttpServerTransport transport) {
+        if (transport instanceof FilterHttpServerTransport) {
+            transport = ((FilterHttpServerTransport) transport).filteredHttpServerTransport();
+        }
+        if (transport instanceof JettyHttpServerTransport) {
+            return (JettyHttpServerTransport) transport;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter;
+
+import com.sonian.elasticsearch.http.jetty.JettyHttpServerRestRequest;
+import org.eclipse.jetty.server.Request;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.http.HttpChannel;
+import org.elasticsearch.http.HttpRequest;
+import org.elasticsearch.http.HttpServerAdapter;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class FilterChainManagerTests {
+
+    private final List<String> calls = newArrayList();
+
+    @BeforeMethod
+    public void clearCalls() {
+        calls.clear();
+    }
+
+    @Test
+    public void testUnscopedChain() {
+        FilterChainManager manager = new FilterChainManager(
+                new FilterHttpServerAdapter[]{new RecordingFilter("a"), new RecordingFilter("b")}, new RecordingAdapter());
+        dispatch(manager, "GET", "/_cluster/health");
+        assertThat(calls.toString(), equalTo("[a, b, adapter]"));
+        calls.clear();
+        // The chain is reused
+        dispatch(manager, "POST", "/idx/_search");
+        assertThat(calls.toString(), equalTo("[a, b, adapter]"));
+
+        calls.clear();
+        dispatch(new FilterChainManager(new FilterHttpServerAdapter[0], new RecordingAdapter()), "GET", "/");
+        assertThat(calls.toString(), equalTo("[adapter]"));
+    }
+
+    @Test
+    public void testScopedChains() {
+        FilterScope searches = FilterScope.scope(ImmutableSettings.settingsBuilder()
+                .putArray("apply_to.path", "/_search", "/{index}/_search")
+                .putArray("apply_to.method", "GET", "POST")
+                .build());
+        FilterScope testIndex = FilterScope.scope(ImmutableSettings.settingsBuilder()
+                .putArray("apply_to.path", "/test/_search", "/test/{type}")
+                .build());
+        assertThat(FilterScope.scope(ImmutableSettings.EMPTY), nullValue());
+        FilterChainManager manager = new FilterChainManager(
+                new FilterHttpServerAdapter[]{new RecordingFilter("all"), new RecordingFilter("searches"), new RecordingFilter("test")},
+                new FilterScope[]{null, searches, testIndex},
+                new RecordingAdapter());
+
+        dispatch(manager, "GET", "/_cluster/health");
+        assertThat(calls.toString(), equalTo("[all, adapter]"));
+
+        calls.clear();
+        dispatch(manager, "POST", "/_search");
+        assertThat(calls.toString(), equalTo("[all, searches, adapter]"));
+
+        calls.clear();
+        dispatch(manager, "GET", "/other/_search");
+        assertThat(calls.toString(), equalTo("[all, searches, adapter]"));
+
+        // Both patterns match, the more specific route includes filters of both
+        calls.clear();
+        dispatch(manager, "GET", "/test/_search");
+        assertThat(calls.toString(), equalTo("[all, searches, test, adapter]"));
+
+        calls.clear();
+        dispatch(manager, "DELETE", "/test/_search");
+        assertThat(calls.toString(), equalTo("[all, test, adapter]"));
+
+        calls.clear();
+        dispatch(manager, "PUT", "/test/doc");
+        assertThat(calls.toString(), equalTo("[all, test, adapter]"));
+    }
+
+    @Test
+    public void testScopedChainWithoutUnscopedFilters() {
+        FilterScope bulk = FilterScope.scope(ImmutableSettings.settingsBuilder()
+                .putArray("apply_to.path", "/_bulk")
+                .put("apply_to.method", "POST")
+                .build());
+        FilterChainManager manager = new FilterChainManager(new FilterHttpServerAdapter[]{new RecordingFilter("bulk")},
+                new FilterScope[]{bulk}, new RecordingAdapter());
+        dispatch(manager, "POST", "/_bulk");
+        assertThat(calls.toString(), equalTo("[bulk, adapter]"));
+        calls.clear();
+        dispatch(manager, "GET", "/_bulk");
+        assertThat(calls.toString(), equalTo("[adapter]"));
+    }
+
+    @Test
+    public void testAsyncFilters() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            FilterChainManager manager = new FilterChainManager(new FilterHttpServerAdapter[]{
+                    new RecordingFilter("a"), new ResumingFilter("async", executor), new RecordingFilter("b")},
+                    new RecordingAdapter());
+            RecordingChannel channel = dispatch(manager, "GET", "/_search");
+            // The dispatching thread returns before the chain is resumed
+            assertThat(calls.toString(), equalTo("[a, async]"));
+            channel.resumed.countDown();
+            assertThat(channel.completed.await(10, TimeUnit.SECONDS), equalTo(true));
+            assertThat(calls.toString(), equalTo("[a, async, b, adapter]"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncFilterFailure() throws Exception {
+        FilterChainManager manager = new FilterChainManager(new FilterHttpServerAdapter[]{new AbstractAsyncFilterHttpServerAdapter() {
+            @Override
+            public void filterAsync(HttpRequest request, HttpChannel channel, FilterCallback callback) {
+                callback.onFailure(new ElasticsearchIllegalArgumentException("quota exceeded"));
+                // Only the first call counts
+                callback.onFailure(new ElasticsearchIllegalArgumentException("ignored"));
+            }
+        }, new RecordingFilter("b")}, new RecordingAdapter());
+        RecordingChannel channel = dispatch(manager, "GET", "/_search");
+        assertThat(calls.isEmpty(), equalTo(true));
+        assertThat(channel.responses.size(), equalTo(1));
+        assertThat(channel.responses.get(0).status(), equalTo(RestStatus.BAD_REQUEST));
+
+        // Exceptions thrown before the chain is resumed are sent to the client as well
+        manager = new FilterChainManager(new FilterHttpServerAdapter[]{new AbstractAsyncFilterHttpServerAdapter() {
+            @Override
+            public void filterAsync(HttpRequest request, HttpChannel channel, FilterCallback callback) {
+                throw new ElasticsearchException("lookup failed");
+            }
+        }}, new RecordingAdapter());
+        channel = dispatch(manager, "GET", "/_search");
+        assertThat(channel.responses.size(), equalTo(1));
+        assertThat(channel.responses.get(0).status(), equalTo(RestStatus.INTERNAL_SERVER_ERROR));
+    }
+
+    @Test
+    public void testFilterTimings() throws Exception {
+        FilterHttpServerAdapter slow = new FilterHttpServerAdapter() {
+            @Override
+            public void doFilter(HttpRequest request, final HttpChannel channel, FilterChain filterChain) {
+                sleep(5);
+                filterChain.doFilter(request, new HttpChannel(request) {
+                    @Override
+                    public void sendResponse(RestResponse response) {
+                        sleep(5);
+                        channel.sendResponse(response);
+                    }
+                });
+            }
+        };
+        FilterHttpServerAdapter passThrough = new RecordingFilter("pass");
+        Map<String, FilterHttpServerAdapter> filters = new LinkedHashMap<String, FilterHttpServerAdapter>();
+        filters.put("slow", slow);
+        filters.put("pass", passThrough);
+        FilterTimings timings = new FilterTimings(filters, 1);
+        FilterChainManager manager = new FilterChainManager(new FilterHttpServerAdapter[]{slow, passThrough},
+                new FilterScope[2], timings, new HttpServerAdapter() {
+            @Override
+            public void dispatchRequest(HttpRequest request, HttpChannel channel) {
+                sleep(2);
+                channel.sendResponse(new BytesRestResponse(RestStatus.OK));
+            }
+        });
+        RecordingChannel channel = dispatch(manager, "GET", "/_search");
+        assertThat(channel.responses.size(), equalTo(1));
+
+        long millis = TimeUnit.MILLISECONDS.toNanos(1);
+        FilterTiming slowTiming = timings.timing("slow");
+        assertThat(slowTiming.requestInclusive().count(), equalTo(1L));
+        // The slow filter waits 5ms before the request and 5ms before the response, the adapter waits 2ms
+        assertThat(slowTiming.requestInclusive().max(), greaterThanOrEqualTo(12 * millis));
+        assertThat(slowTiming.requestExclusive().max(), greaterThanOrEqualTo(5 * millis));
+        assertThat(slowTiming.requestExclusive().max(), lessThan(slowTiming.requestInclusive().max() - 5 * millis));
+        assertThat(slowTiming.responseInclusive().count(), equalTo(1L));
+        assertThat(slowTiming.responseExclusive().max(), greaterThanOrEqualTo(5 * millis));
+
+        FilterTiming passTiming = timings.timing("pass");
+        assertThat(passTiming.requestInclusive().max(), greaterThanOrEqualTo(7 * millis));
+        assertThat(passTiming.requestExclusive().max(), lessThan(2 * millis));
+        // The filter doesn't wrap the channel
+        assertThat(passTiming.responseInclusive().count(), equalTo(0L));
+
+        assertThat(timings.dispatch().requestInclusive().max(), greaterThanOrEqualTo(7 * millis));
+        assertThat(timings.dispatch().requestExclusive().max(), greaterThanOrEqualTo(2 * millis));
+        assertThat(timings.dispatch().requestExclusive().max(), lessThan(5 * millis));
+        assertThat(timings.send().responseInclusive().count(), equalTo(1L));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private RecordingChannel dispatch(FilterChainManager manager, String method, String uri) {
+        // Requests without a connection have no headers
+        Request request = new Request() {
+            @Override
+            public String getHeader(String name) {
+                return null;
+            }
+        };
+        request.setMethod(method);
+        request.setRequestURI(uri);
+        JettyHttpServerRestRequest restRequest = new JettyHttpServerRestRequest(request, BytesArray.EMPTY);
+        RecordingChannel channel = new RecordingChannel(restRequest);
+        manager.dispatchRequest(restRequest, channel);
+        return channel;
+    }
+
+    private class RecordingFilter implements FilterHttpServerAdapter {
+        private final String name;
+
+        RecordingFilter(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void doFilter(HttpRequest request, HttpChannel channel, FilterChain filterChain) {
+            calls.add(name);
+            filterChain.doFilter(request, channel);
+        }
+    }
+
+    private class ResumingFilter extends AbstractAsyncFilterHttpServerAdapter {
+        private final String name;
+
+        private final ExecutorService executor;
+
+        ResumingFilter(String name, ExecutorService executor) {
+            this.name = name;
+            this.executor = executor;
+        }
+
+        @Override
+        public void filterAsync(final HttpRequest request, final HttpChannel channel, final FilterCallback callback) {
+            calls.add(name);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ((RecordingChannel) channel).resumed.await();
+                        callback.doFilter(request, channel);
+                    } catch (InterruptedException e) {
+                        callback.onFailure(e);
+                    }
+                }
+            });
+        }
+    }
+
+    private class RecordingAdapter implements HttpServerAdapter {
+        @Override
+        public void dispatchRequest(HttpRequest request, HttpChannel channel) {
+            calls.add("adapter");
+            if (channel instanceof RecordingChannel) {
+                ((RecordingChannel) channel).completed.countDown();
+            }
+        }
+    }
+
+    private static class RecordingChannel extends HttpChannel {
+        private final List<RestResponse> responses = new CopyOnWriteArrayList<RestResponse>();
+
+        private final CountDownLatch resumed = new CountDownLatch(1);
+
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        RecordingChannel(RestRequest request) {
+            super(request);
+        }
+
+        @Override
+        public void sendResponse(RestResponse response) {
+            responses.add(response);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter.benchmark;
+
+import com.sonian.elasticsearch.http.filter.FilterChain;
+import com.sonian.elasticsearch.http.filter.FilterChainManager;
+import com.sonian.elasticsearch.http.filter.FilterHttpServerAdapter;
+import org.elasticsearch.common.StopWatch;
+import org.elasticsearch.http.HttpChannel;
+import org.elasticsearch.http.HttpRequest;
+import org.elasticsearch.http.HttpServerAdapter;
+
+/**
+ * Measures the overhead of passing requests through chains of 0, 3 and 10 filters that do nothing,
+ * comparing the precompiled {@link FilterChainManager} with a chain that allocates a link per filter
+ * for each request.
+ * <p/>
+ * Run with <tt>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.sonian.elasticsearch.http.filter.benchmark.FilterChainBenchmark</tt>
+ *
+ * @author imotov
+ */
+public class FilterChainBenchmark {
+
+    private static final int ITERATIONS = 50000000;
+
+    public static void main(String[] args) throws Exception {
+        CountingAdapter adapter = new CountingAdapter();
+        for (int round = 0; round < 3; round++) {
+            // The first round warms up the jit
+            boolean report = round > 0;
+            for (int size : new int[]{0, 3, 10}) {
+                FilterHttpServerAdapter[] filters = new FilterHttpServerAdapter[size];
+                for (int i = 0; i < size; i++) {
+                    filters[i] = new NoopFilter();
+                }
+                run("precompiled", size, new FilterChainManager(filters, adapter), report);
+                run("allocating", size, new AllocatingFilterChainManager(filters, adapter), report);
+            }
+        }
+        System.out.println("dispatched " + adapter.count + " requests");
+    }
+
+    private static void run(String name, int size, HttpServerAdapter manager, boolean report) {
+        StopWatch stopWatch = new StopWatch().start();
+        for (int i = 0; i < ITERATIONS; i++) {
+            manager.dispatchRequest(null, null);
+        }
+        stopWatch.stop();
+        if (report) {
+            System.out.println("filters [" + size + "], " + name + ": "
+                    + (long) (ITERATIONS / stopWatch.totalTime().secondsFrac()) + " req/s");
+        }
+    }
+
+    private static class NoopFilter implements FilterHttpServerAdapter {
+        @Override
+        public void doFilter(HttpRequest request, HttpChannel channel, FilterChain filterChain) {
+            filterChain.doFilter(request, channel);
+        }
+    }
+
+    private static class CountingAdapter implements HttpServerAdapter {
+        private long count;
+
+        @Override
+        public void dispatchRequest(HttpRequest request, HttpChannel channel) {
+            count++;
+        }
+    }
+
+    /**
+     * The previous implementation of the filter chain
+     */
+    private static class AllocatingFilterChainManager implements HttpServerAdapter {
+        private final FilterHttpServerAdapter[] filters;
+
+        private final HttpServerAdapter adapter;
+
+        AllocatingFilterChainManager(FilterHttpServerAdapter[] filters, HttpServerAdapter adapter) {
+            this.filters = filters;
+            this.adapter = adapter;
+        }
+
+        @Override
+        public void dispatchRequest(HttpRequest request, HttpChannel channel) {
+            new FilterChainImpl(0).doFilter(request, channel);
+        }
+
+        private class FilterChainImpl implements FilterChain {
+            private final int currentFilter;
+
+            FilterChainImpl(int currentFilter) {
+                this.currentFilter = currentFilter;
+            }
+
+            @Override
+            public void doFilter(HttpRequest request, HttpChannel channel) {
+                if (currentFilter < filters.length) {
+                    filters[currentFilter].doFilter(request, channel, new FilterChainImpl(currentFilter + 1));
+                } else {
+                    adapter.dispatchRequest(request, channel);
+                }
+            }
+        }
+    }
+}
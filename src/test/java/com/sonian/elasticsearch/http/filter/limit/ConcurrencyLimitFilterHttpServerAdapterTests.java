@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter.limit;
+
+import com.sonian.elasticsearch.http.filter.FilterHttpServerTransport;
+import com.sonian.elasticsearch.http.filter.FilterHttpServerTransportModule;
+import com.sonian.elasticsearch.http.jetty.AbstractJettyHttpServerTests;
+import com.sonian.elasticsearch.http.jetty.HttpClient;
+import com.sonian.elasticsearch.http.jetty.HttpClientResponse;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class ConcurrencyLimitFilterHttpServerAdapterTests extends AbstractJettyHttpServerTests {
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @Test
+    public void testLimitFollowsLatency() {
+        GradientLimit limit = new GradientLimit("test", ImmutableSettings.settingsBuilder()
+                .put("initial_limit", 10)
+                .put("max_limit", 100)
+                .build());
+        // Saturated with stable latency - the limit grows
+        for (int i = 0; i < 100; i++) {
+            limit.update(1000000, limit.limit(), false);
+        }
+        int grown = limit.limit();
+        assertThat(grown, greaterThan(10));
+
+        // Latency goes up 10 times - the limit shrinks
+        for (int i = 0; i < 5; i++) {
+            limit.update(10000000, limit.limit(), false);
+        }
+        assertThat(limit.limit(), lessThan(grown));
+
+        // Overloaded
+        int beforeDrop = limit.limit();
+        limit.update(0, 0, true);
+        assertThat(limit.limit(), lessThan(beforeDrop));
+
+        // Not saturated - the limit doesn't change
+        int idle = limit.limit();
+        for (int i = 0; i < 100; i++) {
+            limit.update(100, 0, false);
+        }
+        assertThat(limit.limit(), equalTo(idle));
+    }
+
+    @Test
+    public void testLimitBounds() {
+        GradientLimit limit = new GradientLimit("test", ImmutableSettings.settingsBuilder()
+                .put("initial_limit", 2)
+                .put("min_limit", 2)
+                .put("max_limit", 3)
+                .build());
+        assertThat(limit.tryAcquire(), equalTo(true));
+        assertThat(limit.tryAcquire(), equalTo(true));
+        assertThat(limit.tryAcquire(), equalTo(false));
+        assertThat(limit.rejected(), equalTo(1L));
+        for (int i = 0; i < 100; i++) {
+            limit.update(1000, limit.limit(), false);
+        }
+        assertThat(limit.limit(), equalTo(3));
+        for (int i = 0; i < 100; i++) {
+            limit.update(0, 0, true);
+        }
+        assertThat(limit.limit(), equalTo(2));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testExcessRequestsAreRejected() throws Exception {
+        startNode("server1", ImmutableSettings.settingsBuilder()
+                .put("http.type", FilterHttpServerTransportModule.class.getName())
+                .putArray("sonian.elasticsearch.http.filter.http_filter_chain", "limit")
+                .put("sonian.elasticsearch.http.filter.http_filter.limit.type", ConcurrencyLimitFilterHttpServerAdapter.class.getName())
+                .put("sonian.elasticsearch.http.filter.http_filter.limit.routes.health.path", "/_cluster/health")
+                .put("sonian.elasticsearch.http.filter.http_filter.limit.routes.health.initial_limit", 1)
+                .put("sonian.elasticsearch.http.filter.http_filter.limit.routes.health.max_limit", 1));
+        final HttpClient httpClient = httpClient("server1");
+        ConcurrencyLimitFilterHttpServerAdapter filter = (ConcurrencyLimitFilterHttpServerAdapter)
+                ((FilterHttpServerTransport) getHttpServerTransport("server1")).filter("limit");
+        GradientLimit limit = filter.limits().get(0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Holds the only slot until the health request times out
+            Future<HttpClientResponse> future = executor.submit(new Callable<HttpClientResponse>() {
+                @Override
+                public HttpClientResponse call() throws Exception {
+                    return httpClient.request("_cluster/health?wait_for_nodes=5&timeout=1s");
+                }
+            });
+            for (int i = 0; i < 50 && limit.inFlight() == 0; i++) {
+                Thread.sleep(100);
+            }
+            HttpClientResponse response = httpClient.request("_cluster/health");
+            assertThat(response.errorCode(), equalTo(503));
+            assertThat((Boolean) future.get().get("timed_out"), equalTo(true));
+        } finally {
+            executor.shutdownNow();
+        }
+        // The slot is released after the response is sent
+        for (int i = 0; i < 50 && limit.inFlight() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(limit.inFlight(), equalTo(0));
+        assertThat(limit.rejected(), equalTo(1L));
+
+        HttpClientResponse response = httpClient.request("_jetty/stats");
+        Map<String, Object> routes = (Map<String, Object>) ((Map<String, Object>) ((Map<String, Object>) response.get("filters")).get("limit")).get("routes");
+        Map<String, Object> health = (Map<String, Object>) routes.get("health");
+        assertThat((Integer) health.get("limit"), equalTo(1));
+        assertThat((Integer) health.get("rejected"), equalTo(1));
+    }
+}
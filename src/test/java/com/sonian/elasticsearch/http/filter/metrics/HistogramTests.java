@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter.metrics;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class HistogramTests {
+
+    @Test
+    public void testBucketBoundaries() {
+        for (long value = 0; value < 100000; value++) {
+            int index = Histogram.bucketIndex(value);
+            assertThat(Histogram.highestEquivalentValue(index), greaterThanOrEqualTo(value));
+            if (index > 0) {
+                assertThat(Histogram.highestEquivalentValue(index - 1), lessThan(value));
+            }
+        }
+        assertThat(Histogram.bucketIndex(Histogram.MAX_VALUE), equalTo(Histogram.BUCKET_COUNT - 1));
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram(4);
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.count(), equalTo(10000L));
+        assertThat(snapshot.max(), equalTo(10000L));
+        assertThat(snapshot.mean(), closeTo(5000.5, 0.001));
+        assertThat((double) snapshot.percentile(50), closeTo(5000, 5000 * 0.07));
+        assertThat((double) snapshot.percentile(99), closeTo(9900, 9900 * 0.07));
+        assertThat(snapshot.percentile(100), equalTo(10000L));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final Histogram histogram = new Histogram(2);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        histogram.record(j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(histogram.snapshot().count(), equalTo(80000L));
+        assertThat(histogram.snapshot().max(), equalTo(9999L));
+    }
+
+    @Test
+    public void testOutOfRangeValues() {
+        Histogram histogram = new Histogram(1);
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.count(), equalTo(2L));
+        assertThat(snapshot.percentile(1), equalTo(0L));
+        assertThat(snapshot.max(), equalTo(Histogram.MAX_VALUE));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter.metrics;
+
+import com.sonian.elasticsearch.http.filter.FilterHttpServerTransport;
+import com.sonian.elasticsearch.http.filter.FilterHttpServerTransportModule;
+import com.sonian.elasticsearch.http.jetty.AbstractJettyHttpServerTests;
+import com.sonian.elasticsearch.http.jetty.HttpClientResponse;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class MetricsFilterHttpServerAdapterTests extends AbstractJettyHttpServerTests {
+
+    @BeforeMethod
+    public void setup() {
+        putDefaultSettings(ImmutableSettings.settingsBuilder()
+                .put("http.type", FilterHttpServerTransportModule.class.getName())
+                .putArray("sonian.elasticsearch.http.filter.http_filter_chain", "metrics")
+        );
+    }
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testEndpointMetrics() throws Exception {
+        startNode("server1");
+        createTestIndex();
+        for (int i = 0; i < 5; i++) {
+            httpClient("server1").request("POST", "test/_search", createSearchQuery("*:*"));
+        }
+        httpClient("server1").request("GET", "_cluster/health");
+        httpClient("server1").request("GET", "_nodes/_local/stats/http");
+
+        MetricsFilterHttpServerAdapter metrics = (MetricsFilterHttpServerAdapter)
+                ((FilterHttpServerTransport) getHttpServerTransport("server1")).filter("metrics");
+        // Requests are recorded after the response is sent
+        for (int i = 0; i < 50 && metrics.endpointMetrics(POST, "/test/_search").count() < 5; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(metrics.endpointMetrics(POST, "/test/_search").count(), equalTo(5L));
+        assertThat(metrics.endpointMetrics(POST, "/test/_search").name(), equalTo("POST /{index}/_search"));
+        assertThat(metrics.endpointMetrics(GET, "/_nodes/_local/stats/http").name(), equalTo("GET _other"));
+
+        HttpClientResponse response = httpClient("server1").request("_jetty/stats");
+        Map<String, Object> endpoints = (Map<String, Object>) ((Map<String, Object>) ((Map<String, Object>)
+                response.get("filters")).get("metrics")).get("endpoints");
+        Map<String, Object> search = (Map<String, Object>) endpoints.get("POST /{index}/_search");
+        assertThat((Integer) search.get("count"), equalTo(5));
+        assertThat(((Map<String, Object>) search.get("latency_micros")).get("p99"), notNullValue());
+        assertThat(endpoints.get("GET /_cluster/health"), notNullValue());
+        assertThat(endpoints.get("GET _other"), notNullValue());
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testFilterTimings() throws Exception {
+        startNode("server1", ImmutableSettings.settingsBuilder()
+                .put("sonian.elasticsearch.http.filter.timing.enabled", true));
+        httpClient("server1").request("GET", "_cluster/health");
+
+        HttpClientResponse response = httpClient("server1").request("_jetty/stats");
+        Map<String, Object> timings = (Map<String, Object>) response.get("filter_timings");
+        Map<String, Object> request = (Map<String, Object>) ((Map<String, Object>) timings.get("metrics")).get("request");
+        assertThat((Integer) request.get("count"), greaterThanOrEqualTo(1));
+        assertThat(((Map<String, Object>) request.get("exclusive_nanos")).get("p99"), notNullValue());
+        assertThat(timings.get("_dispatch"), notNullValue());
+        assertThat(timings.get("_send"), notNullValue());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.filter.timeout;
+
+import com.sonian.elasticsearch.http.filter.FilterHttpServerTransport;
+import com.sonian.elasticsearch.http.filter.FilterHttpServerTransportModule;
+import com.sonian.elasticsearch.http.jetty.AbstractJettyHttpServerTests;
+import com.sonian.elasticsearch.http.jetty.HttpClientResponse;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class TimeoutFilterHttpServerAdapterTests extends AbstractJettyHttpServerTests {
+
+    @BeforeMethod
+    public void startServer() {
+        startNode("server1", ImmutableSettings.settingsBuilder()
+                .put("http.type", FilterHttpServerTransportModule.class.getName())
+                .putArray("sonian.elasticsearch.http.filter.http_filter_chain", "timeout", "metrics", "logging", "jsonlog")
+                .put("sonian.elasticsearch.http.filter.http_filter.timeout.type", TimeoutFilterHttpServerAdapter.class.getName())
+                .put("sonian.elasticsearch.http.filter.http_filter.timeout.routes.health.path", "/_cluster/health")
+                .put("sonian.elasticsearch.http.filter.http_filter.timeout.routes.health.method", "GET")
+                .put("sonian.elasticsearch.http.filter.http_filter.timeout.routes.health.timeout", "300ms"));
+    }
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @Test
+    public void testHeaderDeadline() throws Exception {
+        long start = System.currentTimeMillis();
+        assertThat(responseCode("/_cluster/health?wait_for_nodes=5&timeout=1s", "200ms"), equalTo(504));
+        assertThat(System.currentTimeMillis() - start, lessThan(900L));
+        assertThat(filter().expired(), equalTo(1L));
+        // The health response that arrives after the deadline is discarded
+        for (int i = 0; i < 50 && filter().discarded() == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(filter().discarded(), equalTo(1L));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testRouteDeadline() throws Exception {
+        // Elasticsearch handles the timeout parameter itself, the filter waits a bit longer
+        HttpClientResponse response = httpClient("server1").request("_cluster/health?wait_for_nodes=5&timeout=1s");
+        assertThat((Boolean) response.get("timed_out"), equalTo(true));
+        assertThat(filter().expired(), equalTo(0L));
+
+        // Without the parameter the health request waits for 30 seconds, longer than the route deadline
+        response = httpClient("server1").request("_cluster/health?wait_for_nodes=5");
+        assertThat(response.errorCode(), equalTo(504));
+        assertThat(filter().expired(), equalTo(1L));
+
+        // Requests that complete in time are not affected
+        response = httpClient("server1").request("_cluster/health");
+        assertThat((String) response.get("status"), equalTo("green"));
+
+        response = httpClient("server1").request("_jetty/stats");
+        Map<String, Object> timeout = (Map<String, Object>) ((Map<String, Object>) response.get("filters")).get("timeout");
+        assertThat((Integer) timeout.get("requests"), equalTo(3));
+        assertThat((Integer) timeout.get("expired"), equalTo(1));
+    }
+
+    private TimeoutFilterHttpServerAdapter filter() {
+        return (TimeoutFilterHttpServerAdapter) ((FilterHttpServerTransport) getHttpServerTransport("server1")).filter("timeout");
+    }
+
+    private int responseCode(String path, String timeout) throws Exception {
+        InetSocketAddress address = ((InetSocketTransportAddress) getHttpServerTransport("server1").boundAddress().publishAddress()).address();
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", address.getHostName(), address.getPort(), path).openConnection();
+        try {
+            connection.setRequestProperty("X-Request-Timeout", timeout);
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -20,6 +20,8 @@ import static org.hamcrest.MatcherAssert.*;
 import static org.hamcrest.Matchers.*;
 
 import org.elasticsearch.common.collect.MapBuilder;
+import org.elasticsearch.http.HttpInfo;
+import org.elasticsearch.http.HttpStats;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -115,6 +117,21 @@ public class JettyHttpServerAdapterTests extends AbstractJettyHttpServerTests {
         assertThat((Integer)((Map<String, Object>) response.get("hits")).get("total"), equalTo(1));
     }
 
+    @Test
+    public void testHttpStats() throws Exception {
+        httpClient("server1").request("_cluster/health");
+        httpClient("server1").request("_cluster/health");
+        HttpStats stats = getHttpServerTransport("server1").stats();
+        assertThat(stats.getTotalOpen(), greaterThanOrEqualTo(1L));
+        assertThat(stats.getServerOpen(), lessThanOrEqualTo(stats.getTotalOpen()));
+    }
+
+    @Test
+    public void testHttpInfo() throws Exception {
+        HttpInfo info = getHttpServerTransport("server1").info();
+        assertThat(info.getMaxContentLength().bytes(), equalTo(100L * 1024 * 1024));
+    }
+
     @SuppressWarnings({"unchecked"})
     @Test
     public void testDefaultPermissions() throws Exception {
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+public class JettyHttpServerAsyncTests extends AbstractJettyHttpServerTests {
+
+    @BeforeMethod
+    public void startNodes() {
+        putDefaultSettings(ImmutableSettings.settingsBuilder()
+                .put("sonian.elasticsearch.http.jetty.async", true));
+        startNode("server1");
+    }
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @Test
+    public void testClusterHealth() throws Exception {
+        HttpClientResponse response = httpClient("server1").request("_cluster/health");
+        assertThat((String) response.get("status"), equalTo("green"));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testIndexingAndSearching() throws Exception {
+        createTestIndex();
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> data = newHashMap();
+            data.put("id", Integer.toString(i));
+            data.put("message", "test");
+            HttpClientResponse response = httpClient("server1", "user", "Passw0rd").request("PUT", "test/msg/" + i, data);
+            assertThat((Boolean) response.get("created"), equalTo(true));
+        }
+        httpClient("server1", "user", "Passw0rd").request("POST", "test/_refresh");
+
+        HttpClientResponse response = httpClient("server1").request("GET", "test/msg/_search?q=*:*");
+        assertThat((Integer) ((Map<String, Object>) response.get("hits")).get("total"), equalTo(10));
+    }
+
+    @Test
+    public void testJettyThreadIsReleasedWhileSuspended() throws Exception {
+        // The only acceptor and the selector of the connector take two threads of its pool, one thread is left for requests
+        closeNode("server1");
+        startNode("server1", ImmutableSettings.settingsBuilder()
+                .put("sonian.elasticsearch.http.jetty.connectors.single.port", "9500-9600")
+                .put("sonian.elasticsearch.http.jetty.connectors.single.acceptors", 1)
+                .put("sonian.elasticsearch.http.jetty.connectors.single.min_threads", 3)
+                .put("sonian.elasticsearch.http.jetty.connectors.single.max_threads", 3));
+        InetSocketAddress address = ((JettyHttpServerTransport) getHttpServerTransport("server1")).connectorAddresses().get("single");
+        final HttpClient httpClient = new HttpClient(new InetSocketTransportAddress(address));
+        Callable<HttpClientResponse> slowRequest = new Callable<HttpClientResponse>() {
+            @Override
+            public HttpClientResponse call() throws Exception {
+                return httpClient.request("_cluster/health?wait_for_nodes=5&timeout=2s");
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            long start = System.currentTimeMillis();
+            Future<HttpClientResponse> first = executor.submit(slowRequest);
+            Future<HttpClientResponse> second = executor.submit(slowRequest);
+            assertThat((Boolean) first.get().get("timed_out"), equalTo(true));
+            assertThat((Boolean) second.get().get("timed_out"), equalTo(true));
+            // With the thread blocked by the first request the second one would take twice as long
+            assertThat(System.currentTimeMillis() - start, lessThan(3500L));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncTimeout() throws Exception {
+        closeNode("server1");
+        startNode("server1", ImmutableSettings.settingsBuilder()
+                .put("sonian.elasticsearch.http.jetty.async_timeout", "500ms"));
+        InetSocketAddress address = ((InetSocketTransportAddress) getHttpServerTransport("server1").boundAddress().publishAddress()).address();
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", address.getHostName(), address.getPort(),
+                "/_cluster/health?wait_for_nodes=5&timeout=2s").openConnection();
+        long start = System.currentTimeMillis();
+        try {
+            assertThat(connection.getResponseCode(), equalTo(HttpURLConnection.HTTP_GATEWAY_TIMEOUT));
+        } finally {
+            connection.disconnect();
+        }
+        assertThat(System.currentTimeMillis() - start, lessThan(2000L));
+
+        // Waits until elasticsearch sends the late response of the timed out request, the response is discarded
+        // and doesn't leak into responses of the requests that reuse the recycled jetty response
+        ClusterHealthResponse health = client("server1").admin().cluster().prepareHealth()
+                .setWaitForNodes("5").setTimeout("2s").execute().actionGet();
+        assertThat(health.isTimedOut(), equalTo(true));
+        for (int i = 0; i < 5; i++) {
+            HttpClientResponse response = httpClient("server1").request("_cluster/health");
+            assertThat(response.errorCode(), equalTo(HttpURLConnection.HTTP_OK));
+            assertThat((String) response.get("status"), equalTo("green"));
+        }
+    }
+
+    @Test
+    public void testSecurityStillApplies() throws Exception {
+        HttpClientResponse response = httpClient("server1").request("POST", "_cluster/health");
+        assertThat(response.errorCode(), equalTo(HttpURLConnection.HTTP_UNAUTHORIZED));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty;
+
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class JettyHttpServerChunkedResponseTests extends AbstractJettyHttpServerTests {
+
+    @BeforeMethod
+    public void startNodes() {
+        putDefaultSettings(ImmutableSettings.settingsBuilder()
+                .put("sonian.elasticsearch.http.jetty.response.chunked_threshold", "1kb")
+                .put("sonian.elasticsearch.http.jetty.response.chunk_size", 100));
+        startNode("server1");
+    }
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @Test
+    public void testLargeResponseIsChunked() throws Exception {
+        HttpURLConnection connection = open("_nodes?pretty");
+        try {
+            assertThat(connection.getResponseCode(), equalTo(200));
+            assertThat(connection.getHeaderField("Transfer-Encoding"), equalTo("chunked"));
+            assertThat(connection.getHeaderField("Content-Length"), nullValue());
+            byte[] body = Streams.copyToByteArray(connection.getInputStream());
+            assertThat(body.length, greaterThan(1024));
+            Map<String, Object> response = XContentHelper.convertToMap(body, false).v2();
+            assertThat(response.get("nodes"), notNullValue());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test
+    public void testSmallResponseHasContentLength() throws Exception {
+        HttpURLConnection connection = open("_cluster/health");
+        try {
+            assertThat(connection.getResponseCode(), equalTo(200));
+            assertThat(connection.getHeaderField("Transfer-Encoding"), nullValue());
+            byte[] body = Streams.copyToByteArray(connection.getInputStream());
+            assertThat(connection.getHeaderFieldInt("Content-Length", -1), equalTo(body.length));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String path) throws Exception {
+        InetSocketAddress address = ((InetSocketTransportAddress) getHttpServerTransport("server1").boundAddress().publishAddress()).address();
+        URL url = new URL("http", address.getHostName(), address.getPort(), "/" + path);
+        return (HttpURLConnection) url.openConnection();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty;
+
+import com.sonian.elasticsearch.http.filter.FilterHttpServerTransport;
+import com.sonian.elasticsearch.http.filter.FilterHttpServerTransportModule;
+import com.sonian.elasticsearch.http.filter.metrics.MetricsFilterHttpServerAdapter;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class JettyHttpServerConnectorsTests extends AbstractJettyHttpServerTests {
+
+    @BeforeMethod
+    public void startNodes() {
+        putDefaultSettings(ImmutableSettings.settingsBuilder()
+                .put("http.type", FilterHttpServerTransportModule.class.getName())
+                .putArray("sonian.elasticsearch.http.filter.http_filter_chain", "metrics")
+                .put("sonian.elasticsearch.http.jetty.connectors.ingest.port", "9500-9600")
+                .put("sonian.elasticsearch.http.jetty.connectors.ingest.max_threads", 16)
+                .put("sonian.elasticsearch.http.jetty.connectors.ingest.request_buffer_size", "64kb")
+                .putArray("sonian.elasticsearch.http.filter.connector_filter_chain.ingest", "logging"));
+        startNode("server1");
+    }
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testNamedConnector() throws Exception {
+        FilterHttpServerTransport filterTransport = (FilterHttpServerTransport) getHttpServerTransport("server1");
+        JettyHttpServerTransport transport = (JettyHttpServerTransport) filterTransport.filteredHttpServerTransport();
+        Map<String, InetSocketAddress> addresses = transport.connectorAddresses();
+        assertThat(addresses.size(), equalTo(2));
+        InetSocketAddress ingestAddress = addresses.get("ingest");
+        assertThat(ingestAddress, notNullValue());
+        assertThat(ingestAddress.getPort(), not(equalTo(((InetSocketTransportAddress) transport.boundAddress().boundAddress()).address().getPort())));
+
+        HttpClient ingestClient = new HttpClient(new InetSocketTransportAddress(ingestAddress));
+        for (int i = 0; i < 3; i++) {
+            HttpClientResponse response = ingestClient.request("_cluster/health");
+            assertThat((String) response.get("status"), equalTo("green"));
+        }
+        // Requests on the ingest connector skip the metrics filter
+        MetricsFilterHttpServerAdapter metrics = (MetricsFilterHttpServerAdapter) filterTransport.filter("metrics");
+        assertThat(metrics.endpointMetrics(GET, "/_cluster/health").count(), equalTo(0L));
+
+        HttpClientResponse response = httpClient("server1").request("_jetty/stats");
+        Map<String, Object> ingest = (Map<String, Object>) ((Map<String, Object>) response.get("connectors")).get("ingest");
+        assertThat((Integer) ingest.get("port"), equalTo(ingestAddress.getPort()));
+        assertThat((Integer) ingest.get("total_opened"), greaterThan(0));
+        Map<String, Object> threadPool = (Map<String, Object>) ingest.get("thread_pool");
+        assertThat((String) threadPool.get("name"), equalTo("jetty-ingest"));
+        assertThat((Integer) threadPool.get("max"), equalTo(16));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class JettyHttpServerDrainTests extends AbstractJettyHttpServerTests {
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @Test
+    public void testInFlightRequestsCompleteOnStop() throws Exception {
+        startNode("server1");
+        final HttpClient httpClient = httpClient("server1");
+        JettyHttpServerTransport transport = (JettyHttpServerTransport) getHttpServerTransport("server1");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Waits for nodes that never join, the response is sent after the timeout
+            Future<HttpClientResponse> future = executor.submit(new Callable<HttpClientResponse>() {
+                @Override
+                public HttpClientResponse call() throws Exception {
+                    return httpClient.request("_cluster/health?wait_for_nodes=5&timeout=2s");
+                }
+            });
+            for (int i = 0; i < 50 && transport.inFlightRequests() == 0; i++) {
+                Thread.sleep(100);
+            }
+            assertThat(transport.inFlightRequests(), equalTo(1));
+
+            closeNode("server1");
+            assertThat(transport.draining(), equalTo(false));
+
+            HttpClientResponse response = future.get();
+            assertThat(response.errorCode(), equalTo(200));
+            assertThat((Boolean) response.get("timed_out"), equalTo(true));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
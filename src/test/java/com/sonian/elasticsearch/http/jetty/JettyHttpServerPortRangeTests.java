@@ -0,0 +1,57 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class JettyHttpServerPortRangeTests extends AbstractJettyHttpServerTests {
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @Test
+    public void testSkipsTakenPorts() throws Exception {
+        ServerSocket takenPort = new ServerSocket();
+        try {
+            takenPort.bind(new InetSocketAddress(0));
+            int port = takenPort.getLocalPort();
+            startNode("server1", ImmutableSettings.settingsBuilder()
+                    .put("sonian.elasticsearch.http.jetty.port", port + "-" + (port + 20)));
+            int boundPort = ((InetSocketTransportAddress) getHttpServerTransport("server1").boundAddress().boundAddress()).address().getPort();
+            assertThat(boundPort, greaterThan(port));
+            assertThat(boundPort, lessThanOrEqualTo(port + 20));
+
+            HttpClientResponse response = httpClient("server1").request("_cluster/health");
+            assertThat((String) response.get("status"), equalTo("green"));
+        } finally {
+            takenPort.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty;
+
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class JettyHttpServerReloadTests extends AbstractJettyHttpServerTests {
+
+    private static final String EMPTY_CONFIG = "<?xml version=\"1.0\"?>\n" +
+            "<!DOCTYPE Configure PUBLIC \"-//Jetty//Configure//EN\" \"http://www.eclipse.org/jetty/configure.dtd\">\n" +
+            "<Configure id=\"ESServer\" class=\"org.eclipse.jetty.server.Server\"/>\n";
+
+    private File restrictionsFile;
+
+    @BeforeMethod
+    public void startNodes() throws Exception {
+        restrictionsFile = File.createTempFile("jetty-restrictions", ".xml");
+        Streams.copy(EMPTY_CONFIG.getBytes("UTF-8"), restrictionsFile);
+        putDefaultSettings(ImmutableSettings.settingsBuilder()
+                .put("sonian.elasticsearch.http.jetty.config", "jetty.xml,jetty-hash-auth.xml," + restrictionsFile.getAbsolutePath()));
+        startNode("server1");
+    }
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+        restrictionsFile.delete();
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        HttpClientResponse response = httpClient("server1").request("_cluster/health");
+        assertThat((String) response.get("status"), equalTo("green"));
+
+        // Require authentication for everything
+        Streams.copy(new File("config/jetty-restrict-all.xml"), restrictionsFile);
+        response = httpClient("server1").request("POST", "_jetty/reload");
+        assertThat((Boolean) response.get("acknowledged"), equalTo(true));
+
+        response = httpClient("server1").request("_cluster/health");
+        assertThat(response.errorCode(), equalTo(HttpURLConnection.HTTP_UNAUTHORIZED));
+        response = httpClient("server1", "user", "Passw0rd").request("_cluster/health");
+        assertThat((String) response.get("status"), equalTo("green"));
+
+        // Listening socket of the main connector is kept
+        JettyHttpServerTransport transport = (JettyHttpServerTransport) getHttpServerTransport("server1");
+        assertThat(transport.connectors().length, equalTo(1));
+
+        Streams.copy(EMPTY_CONFIG.getBytes("UTF-8"), restrictionsFile);
+        transport.reload();
+        response = httpClient("server1").request("_cluster/health");
+        assertThat((String) response.get("status"), equalTo("green"));
+    }
+}
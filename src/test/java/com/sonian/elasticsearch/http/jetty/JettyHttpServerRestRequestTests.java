@@ -0,0 +1,319 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.util.BigArrays;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class JettyHttpServerRestRequestTests {
+
+    private Server server;
+
+    private LocalConnector connector;
+
+    private RequestCapturingHandler handler;
+
+    private File spillDirectory;
+
+    @BeforeMethod
+    public void createServer() throws Exception {
+        spillDirectory = File.createTempFile("spill", "");
+        spillDirectory.delete();
+        spillDirectory.mkdirs();
+        server = new Server();
+        connector = new LocalConnector();
+        server.addConnector(connector);
+        handler = new RequestCapturingHandler();
+        server.setHandler(handler);
+        server.start();
+    }
+
+    @AfterMethod
+    public void stopServer() throws Exception {
+        server.stop();
+        server.join();
+        FileSystemUtils.deleteRecursively(spillDirectory);
+    }
+
+    @Test
+    public void testEmptyBody() throws Exception {
+        connector.getResponses("GET /_cluster/health?pretty HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+        assertThat(handler.hasContent, equalTo(false));
+        assertThat(handler.content, equalTo(""));
+    }
+
+    @Test
+    public void testBodyWithContentLength() throws Exception {
+        String body = "{\"query\":{\"match_all\":{}}}";
+        connector.getResponses("POST /_search HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n" +
+                "Content-Length: " + body.length() + "\r\n\r\n" + body);
+        assertThat(handler.hasContent, equalTo(true));
+        assertThat(handler.content, equalTo(body));
+    }
+
+    @Test
+    public void testChunkedBody() throws Exception {
+        connector.getResponses("POST /_bulk HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n" +
+                "Transfer-Encoding: chunked\r\n\r\n" +
+                "5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n");
+        assertThat(handler.content, equalTo("hello world"));
+    }
+
+    @Test
+    public void testMultiPageBody() throws Exception {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 3 * BigArrays.BYTE_PAGE_SIZE + 17) {
+            body.append("{\"index\":{}}\n{\"field\":").append(body.length()).append("}\n");
+        }
+        connector.getResponses("POST /_bulk HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n" +
+                "Content-Length: " + body.length() + "\r\n\r\n" + body);
+        assertThat(handler.content, equalTo(body.toString()));
+        assertThat(handler.contentUnsafe, equalTo(true));
+    }
+
+    @Test
+    public void testParamsUriAndHeaders() throws Exception {
+        connector.getResponses("GET /test/_search?q=field%3Avalue&pretty HTTP/1.1\r\nHost: localhost\r\n" +
+                "X-Opaque-Id: 42\r\nConnection: close\r\n\r\n");
+        assertThat(handler.uri, equalTo("/test/_search"));
+        assertThat(handler.params.get("q"), equalTo("field:value"));
+        assertThat(handler.params.get("pretty"), equalTo(""));
+        assertThat(handler.sameParams, equalTo(true));
+        assertThat(handler.opaqueId, equalTo("42"));
+        assertThat(handler.headerCount, equalTo(3));
+    }
+
+    @Test
+    public void testGzipBody() throws Exception {
+        String body = "{\"index\":{}}\n{\"message\":\"compressed\"}\n";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        sendEncoded("gzip", bytes.toByteArray());
+        assertThat(handler.failureStatus, equalTo(0));
+        assertThat(handler.content, equalTo(body));
+    }
+
+    @Test
+    public void testDeflateBody() throws Exception {
+        String body = "{\"query\":{\"match_all\":{}}}";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        sendEncoded("deflate", bytes.toByteArray());
+        assertThat(handler.failureStatus, equalTo(0));
+        assertThat(handler.content, equalTo(body));
+    }
+
+    @Test
+    public void testDecodedBodyLimit() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(new byte[handler.maxDecodedSize + 1]);
+        out.close();
+        sendEncoded("gzip", bytes.toByteArray());
+        assertThat(handler.failureStatus, equalTo(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE));
+    }
+
+    @Test
+    public void testUnsupportedEncoding() throws Exception {
+        sendEncoded("br", new byte[]{1, 2, 3});
+        assertThat(handler.failureStatus, equalTo(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE));
+    }
+
+    @Test
+    public void testContentLengthLimit() throws Exception {
+        String responses = connector.getResponses("POST /_bulk HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n" +
+                "Expect: 100-continue\r\nContent-Length: " + (handler.maxContentLength + 1) + "\r\n\r\n");
+        assertThat(handler.failureStatus, equalTo(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE));
+        // The body is rejected without asking the client to send it
+        assertThat(responses, not(containsString("100 Continue")));
+        assertThat(responses, startsWith("HTTP/1.1 413"));
+    }
+
+    @Test
+    public void testChunkedBodyLimit() throws Exception {
+        StringBuilder request = new StringBuilder("POST /_bulk HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n" +
+                "Transfer-Encoding: chunked\r\n\r\n");
+        char[] chunk = new char[1024];
+        Arrays.fill(chunk, 'a');
+        for (int i = 0; i <= handler.maxContentLength / chunk.length; i++) {
+            request.append("400\r\n").append(chunk).append("\r\n");
+        }
+        request.append("0\r\n\r\n");
+        connector.getResponses(request.toString());
+        assertThat(handler.failureStatus, equalTo(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE));
+    }
+
+    @Test
+    public void testSpilledBody() throws Exception {
+        handler.contentReader = new RequestContentReader(BigArrays.NON_RECYCLING_INSTANCE, Long.MAX_VALUE,
+                Long.MAX_VALUE, 1024, spillDirectory);
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 4096) {
+            body.append("{\"index\":{}}\n{\"field\":").append(body.length()).append("}\n");
+        }
+        connector.getResponses("POST /_bulk HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n" +
+                "Content-Length: " + body.length() + "\r\n\r\n" + body);
+        assertThat(handler.content, equalTo(body.toString()));
+        assertThat(handler.contentUnsafe, equalTo(true));
+        assertThat(handler.spilledFile, notNullValue());
+        assertThat(handler.spilledFile.getParentFile(), equalTo(spillDirectory));
+        // The file is deleted and unmapped when the request is released
+        assertThat(handler.spilledFile.exists(), equalTo(false));
+        assertThat(handler.unmapped, equalTo(true));
+    }
+
+    @Test
+    public void testAbandonedSpilledBody() throws Exception {
+        handler.contentReader = new RequestContentReader(BigArrays.NON_RECYCLING_INSTANCE, Long.MAX_VALUE,
+                Long.MAX_VALUE, 1024, spillDirectory);
+        handler.abandon = true;
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 4096) {
+            body.append("{\"index\":{}}\n{\"field\":").append(body.length()).append("}\n");
+        }
+        connector.getResponses("POST /_bulk HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n" +
+                "Content-Length: " + body.length() + "\r\n\r\n" + body);
+        // The content might still be read, so only the file is deleted
+        assertThat(handler.spilledFile.exists(), equalTo(false));
+        assertThat(handler.unmapped, equalTo(false));
+        assertThat(handler.content, equalTo(body.toString()));
+    }
+
+    @Test
+    public void testSpilledChunkedBody() throws Exception {
+        handler.contentReader = new RequestContentReader(BigArrays.NON_RECYCLING_INSTANCE, Long.MAX_VALUE,
+                Long.MAX_VALUE, 1024, spillDirectory);
+        StringBuilder request = new StringBuilder("POST /_bulk HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n" +
+                "Transfer-Encoding: chunked\r\n\r\n");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            String chunk = "{\"index\":{}}\n{\"field\":" + i + "}\n";
+            body.append(chunk);
+            request.append(Integer.toHexString(chunk.length())).append("\r\n").append(chunk).append("\r\n");
+        }
+        request.append("0\r\n\r\n");
+        connector.getResponses(request.toString());
+        assertThat(handler.content, equalTo(body.toString()));
+        assertThat(handler.spilledFile, notNullValue());
+        assertThat(handler.spilledFile.exists(), equalTo(false));
+    }
+
+    private void sendEncoded(String encoding, byte[] body) throws Exception {
+        // Local connector reads requests as ISO-8859-1, so binary body survives the conversion
+        connector.getResponses("POST /_bulk HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n" +
+                "Content-Encoding: " + encoding + "\r\nContent-Length: " + body.length + "\r\n\r\n" +
+                new String(body, "ISO-8859-1"));
+    }
+
+    private static class RequestCapturingHandler extends AbstractHandler {
+        final int maxContentLength = 64 * 1024;
+
+        final int maxDecodedSize = 128 * 1024;
+
+        volatile RequestContentReader contentReader = new RequestContentReader(BigArrays.NON_RECYCLING_INSTANCE,
+                maxContentLength, maxDecodedSize, -1, null);
+
+        volatile int failureStatus;
+
+        volatile File spilledFile;
+
+        volatile boolean unmapped;
+
+        volatile boolean abandon;
+
+        volatile String uri;
+
+        volatile Map<String, String> params;
+
+        volatile boolean sameParams;
+
+        volatile String opaqueId;
+
+        volatile int headerCount;
+
+        volatile boolean hasContent;
+
+        volatile boolean contentUnsafe;
+
+        volatile String content;
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+                throws IOException, ServletException {
+            JettyHttpServerRestRequest restRequest;
+            try {
+                restRequest = new JettyHttpServerRestRequest(request, contentReader);
+            } catch (RequestContentException e) {
+                failureStatus = e.status();
+                baseRequest.setHandled(true);
+                response.sendError(e.status());
+                return;
+            }
+            if (abandon) {
+                restRequest.abandon();
+            }
+            hasContent = restRequest.hasContent();
+            contentUnsafe = restRequest.contentUnsafe();
+            if (restRequest.content() instanceof MappedFileBytesReference) {
+                spilledFile = ((MappedFileBytesReference) restRequest.content()).file();
+            }
+            content = restRequest.content().toUtf8();
+            uri = restRequest.uri();
+            params = restRequest.params();
+            sameParams = restRequest.params() == params;
+            opaqueId = restRequest.opaqueId();
+            headerCount = 0;
+            for (Map.Entry<String, String> header : restRequest.headers()) {
+                headerCount++;
+            }
+            restRequest.release();
+            restRequest.release();
+            if (restRequest.content() instanceof MappedFileBytesReference) {
+                unmapped = ((MappedFileBytesReference) restRequest.content()).unmapped();
+            }
+            baseRequest.setHandled(true);
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+    }
+}
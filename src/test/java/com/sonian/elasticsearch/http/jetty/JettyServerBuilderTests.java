@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty;
+
+import org.eclipse.jetty.server.AbstractConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.elasticsearch.common.collect.MapBuilder;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class JettyServerBuilderTests extends AbstractJettyHttpServerTests {
+
+    @BeforeMethod
+    public void startNodes() {
+        putDefaultSettings(ImmutableSettings.settingsBuilder()
+                .put("sonian.elasticsearch.http.jetty.config_type", "settings")
+                .put("sonian.elasticsearch.http.jetty.max_threads", 32)
+                .put("sonian.elasticsearch.http.jetty.request_buffer_size", "32kb")
+                .put("sonian.elasticsearch.http.jetty.auth.type", "hash")
+                .put("sonian.elasticsearch.http.jetty.constraints.read.method", "GET")
+                .put("sonian.elasticsearch.http.jetty.constraints.read.path", "*")
+                .put("sonian.elasticsearch.http.jetty.constraints.read.authenticate", false)
+                .put("sonian.elasticsearch.http.jetty.constraints.write.method", "PUT")
+                .putArray("sonian.elasticsearch.http.jetty.constraints.write.path", "/{index}", "/{index}/{type}/{id}")
+                .putArray("sonian.elasticsearch.http.jetty.constraints.write.roles", "readwrite")
+                .put("sonian.elasticsearch.http.jetty.constraints.other.path", "*")
+                .put("sonian.elasticsearch.http.jetty.constraints.other.authenticate", true));
+        startNode("server1");
+    }
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @Test
+    public void testServerFromSettings() throws Exception {
+        HttpClientResponse response = httpClient("server1").request("_cluster/health");
+        assertThat((String) response.get("status"), equalTo("green"));
+
+        Map<String, Object> settings = MapBuilder.<String, Object>newMapBuilder().put("settings",
+                MapBuilder.newMapBuilder().put("index",
+                        MapBuilder.newMapBuilder()
+                                .put("number_of_shards", 1)
+                                .put("number_of_replicas", 0)
+                                .immutableMap()).immutableMap()
+        ).map();
+        response = httpClient("server1").request("PUT", "testidx", settings);
+        assertThat(response.errorCode(), equalTo(HttpURLConnection.HTTP_UNAUTHORIZED));
+        response = httpClient("server1", "user", "Passw0rd").request("PUT", "testidx", settings);
+        assertThat((Boolean) response.get("acknowledged"), equalTo(true));
+
+        response = httpClient("server1", "user", "Passw0rd").request("POST", "testidx/_refresh");
+        assertThat(response.errorCode(), equalTo(HttpURLConnection.HTTP_FORBIDDEN));
+
+        JettyHttpServerTransport transport = (JettyHttpServerTransport) getHttpServerTransport("server1");
+        AbstractConnector connector = (AbstractConnector) transport.connectors()[0];
+        assertThat(((QueuedThreadPool) connector.getThreadPool()).getMaxThreads(), equalTo(32));
+        assertThat(connector.getRequestBufferSize(), equalTo(32 * 1024));
+    }
+}
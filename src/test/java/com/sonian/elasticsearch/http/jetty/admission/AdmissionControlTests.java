@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty.admission;
+
+import com.sonian.elasticsearch.http.jetty.AbstractJettyHttpServerTests;
+import com.sonian.elasticsearch.http.jetty.HttpClient;
+import com.sonian.elasticsearch.http.jetty.HttpClientResponse;
+import com.sonian.elasticsearch.http.jetty.JettyHttpServerTransport;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class AdmissionControlTests extends AbstractJettyHttpServerTests {
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @Test
+    public void testQueueAndShed() throws Exception {
+        final AdmissionController controller = new AdmissionController(ImmutableSettings.settingsBuilder()
+                .put("max_in_flight", 1)
+                .put("max_queue", 1)
+                .put("queue_timeout", "500ms")
+                .put("retry_after", "1500ms")
+                .build());
+        assertThat(controller.admit(), equalTo(true));
+        // Waits in the queue and times out
+        assertThat(controller.admit(), equalTo(false));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> queued = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return controller.admit();
+                }
+            });
+            for (int i = 0; i < 50 && controller.queueSize() == 0; i++) {
+                Thread.sleep(10);
+            }
+            controller.release();
+            assertThat(queued.get(), equalTo(true));
+        } finally {
+            executor.shutdownNow();
+        }
+        controller.release();
+        assertThat(controller.inFlight(), equalTo(0));
+        assertThat(controller.accepted(), equalTo(2L));
+        assertThat(controller.queued(), equalTo(2L));
+        assertThat(controller.shed(), equalTo(1L));
+        assertThat(controller.retryAfterSeconds(), equalTo(2L));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testExcessRequestsAreShed() throws Exception {
+        startNode("server1", ImmutableSettings.settingsBuilder()
+                .put("sonian.elasticsearch.http.jetty.admission.enabled", true)
+                .put("sonian.elasticsearch.http.jetty.admission.max_in_flight", 1)
+                .put("sonian.elasticsearch.http.jetty.admission.max_queue", 0));
+        final HttpClient httpClient = httpClient("server1");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Holds the only permit until the health request times out
+            Future<HttpClientResponse> future = executor.submit(new Callable<HttpClientResponse>() {
+                @Override
+                public HttpClientResponse call() throws Exception {
+                    return httpClient.request("_cluster/health?wait_for_nodes=5&timeout=1s");
+                }
+            });
+            AdmissionController controller = admissionController();
+            for (int i = 0; i < 50 && controller.inFlight() == 0; i++) {
+                Thread.sleep(100);
+            }
+            InetSocketAddress address = ((InetSocketTransportAddress) getHttpServerTransport("server1").boundAddress().publishAddress()).address();
+            HttpURLConnection connection = (HttpURLConnection) new URL("http", address.getHostName(), address.getPort(), "/_cluster/health").openConnection();
+            try {
+                assertThat(connection.getResponseCode(), equalTo(429));
+                assertThat(connection.getHeaderField("Retry-After"), equalTo("1"));
+            } finally {
+                connection.disconnect();
+            }
+            assertThat((Boolean) future.get().get("timed_out"), equalTo(true));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        HttpClientResponse response = httpClient.request("_jetty/stats");
+        Map<String, Object> admission = (Map<String, Object>) response.get("admission");
+        assertThat((Integer) admission.get("shed"), equalTo(1));
+        assertThat((Integer) admission.get("accepted"), equalTo(2));
+    }
+
+    private AdmissionController admissionController() {
+        return ((JettyHttpServerTransport) getHttpServerTransport("server1")).admissionController();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty.benchmark;
+
+import com.sonian.elasticsearch.http.jetty.JettyHttpServerRestChannel;
+import com.sonian.elasticsearch.http.jetty.JettyHttpServerRestRequest;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.elasticsearch.common.StopWatch;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestStatus;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * Compares writing responses through the servlet output stream with passing them to jetty directly.
+ * <p/>
+ * Run with <tt>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.sonian.elasticsearch.http.jetty.benchmark.ResponseWriteBenchmark</tt>
+ *
+ * @author imotov
+ */
+public class ResponseWriteBenchmark {
+
+    private static volatile boolean directWrites;
+
+    private static volatile BytesArray content;
+
+    public static void main(String[] args) throws Exception {
+        Server server = new Server();
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                JettyHttpServerRestRequest restRequest = new JettyHttpServerRestRequest(request, BytesArray.EMPTY);
+                JettyHttpServerRestChannel channel = new JettyHttpServerRestChannel(restRequest, response);
+                channel.directWrites(directWrites);
+                channel.sendResponse(new BytesRestResponse(RestStatus.OK, "application/octet-stream", content, false));
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        try {
+            URL url = new URL("http", "localhost", connector.getLocalPort(), "/");
+            int[] sizes = new int[]{1024, 100 * 1024, 10 * 1024 * 1024};
+            int[] iterations = new int[]{20000, 5000, 100};
+            for (int i = 0; i < sizes.length; i++) {
+                byte[] bytes = new byte[sizes[i]];
+                Arrays.fill(bytes, (byte) 'a');
+                content = new BytesArray(bytes);
+                for (boolean direct : new boolean[]{false, true, false, true}) {
+                    directWrites = direct;
+                    StopWatch stopWatch = new StopWatch().start();
+                    for (int j = 0; j < iterations[i]; j++) {
+                        request(url, sizes[i]);
+                    }
+                    stopWatch.stop();
+                    double seconds = stopWatch.totalTime().secondsFrac();
+                    System.out.println("size [" + new ByteSizeValue(sizes[i]) + "], direct [" + direct + "]: "
+                            + (long) (iterations[i] / seconds) + " req/s, "
+                            + new ByteSizeValue((long) ((double) sizes[i] * iterations[i] / seconds)) + "/s");
+                }
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void request(URL url, int expectedSize) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        InputStream in = connection.getInputStream();
+        byte[] buffer = new byte[65536];
+        int total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+        }
+        in.close();
+        if (total != expectedSize) {
+            throw new IllegalStateException("expected [" + expectedSize + "] bytes, got [" + total + "]");
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty.bulk;
+
+import com.sonian.elasticsearch.http.filter.FilterHttpServerTransport;
+import com.sonian.elasticsearch.http.filter.FilterHttpServerTransportModule;
+import com.sonian.elasticsearch.http.filter.metrics.MetricsFilterHttpServerAdapter;
+import com.sonian.elasticsearch.http.jetty.AbstractJettyHttpServerTests;
+import com.sonian.elasticsearch.http.jetty.HttpClientResponse;
+import org.elasticsearch.common.base.Charsets;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+
+/**
+ * @author imotov
+ */
+public class StreamingBulkTests extends AbstractJettyHttpServerTests {
+
+    @BeforeMethod
+    public void startNodes() {
+        putDefaultSettings(ImmutableSettings.settingsBuilder()
+                .put("sonian.elasticsearch.http.jetty.bulk.streaming", true)
+                .put("sonian.elasticsearch.http.jetty.bulk.chunk_size", "1kb"));
+        startNode("server1");
+    }
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testMultiChunkBulk() throws Exception {
+        createTestIndex();
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append("{\"index\":{\"_id\":\"").append(i).append("\"}}\n");
+            body.append("{\"id\":\"").append(i).append("\",\"message\":\"test\"}\n");
+            body.append("\n");
+        }
+        body.append("{\"delete\":{\"_id\":\"0\"}}\n");
+        // Last line doesn't have to be terminated
+        body.append("{\"delete\":{\"_id\":\"100\"}}");
+
+        HttpClientResponse response = httpClient("server1", "user", "Passw0rd")
+                .request("POST", "test/msg/_bulk?refresh=true", body.toString().getBytes(Charsets.UTF_8));
+        assertThat(response.errorCode(), equalTo(200));
+        assertThat((Boolean) response.get("errors"), equalTo(false));
+        List<Map<String, Object>> items = (List<Map<String, Object>>) response.get("items");
+        assertThat(items.size(), equalTo(102));
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> item = (Map<String, Object>) items.get(i).get("index");
+            assertThat((String) item.get("_id"), equalTo(Integer.toString(i)));
+            assertThat((String) item.get("_index"), equalTo("test"));
+            assertThat((Integer) item.get("status"), equalTo(201));
+        }
+        assertThat((Boolean) ((Map<String, Object>) items.get(100).get("delete")).get("found"), equalTo(true));
+        assertThat((Integer) ((Map<String, Object>) items.get(101).get("delete")).get("status"), equalTo(404));
+
+        response = httpClient("server1").request("GET", "test/msg/_search?q=*:*");
+        assertThat((Integer) ((Map<String, Object>) response.get("hits")).get("total"), equalTo(99));
+    }
+
+    @Test
+    public void testExplicitIndexNotAllowed() throws Exception {
+        closeNode("server1");
+        startNode("server1", ImmutableSettings.settingsBuilder()
+                .put("rest.action.multi.allow_explicit_index", false));
+        createTestIndex();
+        HttpClientResponse response = httpClient("server1", "user", "Passw0rd").request("POST", "test/msg/_bulk",
+                "{\"index\":{\"_index\":\"other\",\"_id\":\"1\"}}\n{\"message\":\"test\"}\n".getBytes(Charsets.UTF_8));
+        assertThat(response.errorCode(), equalTo(400));
+
+        // The index from the url is still used
+        response = httpClient("server1", "user", "Passw0rd").request("POST", "test/msg/_bulk",
+                "{\"index\":{\"_id\":\"1\"}}\n{\"message\":\"test\"}\n".getBytes(Charsets.UTF_8));
+        assertThat(response.errorCode(), equalTo(200));
+        assertThat((Boolean) response.get("errors"), equalTo(false));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testFailedSubBulk() throws Exception {
+        createTestIndex();
+        client("server1").admin().cluster().prepareUpdateSettings()
+                .setTransientSettings(ImmutableSettings.settingsBuilder().put("cluster.blocks.read_only", true))
+                .execute().actionGet();
+        try {
+            HttpClientResponse response = httpClient("server1", "user", "Passw0rd").request("POST", "test/msg/_bulk",
+                    ("{\"index\":{\"_id\":\"1\"}}\n{\"message\":\"test\"}\n" +
+                            "{\"delete\":{\"_id\":\"2\"}}\n").getBytes(Charsets.UTF_8));
+            assertThat(response.errorCode(), equalTo(200));
+            assertThat((Boolean) response.get("errors"), equalTo(true));
+            List<Map<String, Object>> items = (List<Map<String, Object>>) response.get("items");
+            assertThat(items.size(), equalTo(2));
+            Map<String, Object> item = (Map<String, Object>) items.get(0).get("index");
+            assertThat((String) item.get("_id"), equalTo("1"));
+            assertThat((String) item.get("error"), notNullValue());
+            item = (Map<String, Object>) items.get(1).get("delete");
+            assertThat((String) item.get("_id"), equalTo("2"));
+            assertThat((String) item.get("error"), notNullValue());
+        } finally {
+            client("server1").admin().cluster().prepareUpdateSettings()
+                    .setTransientSettings(ImmutableSettings.settingsBuilder().put("cluster.blocks.read_only", false))
+                    .execute().actionGet();
+        }
+    }
+
+    @Test
+    public void testFiltersAreNotApplied() throws Exception {
+        closeNode("server1");
+        startNode("server1", ImmutableSettings.settingsBuilder()
+                .put("http.type", FilterHttpServerTransportModule.class.getName())
+                .putArray("sonian.elasticsearch.http.filter.http_filter_chain", "metrics"));
+        createTestIndex();
+        MetricsFilterHttpServerAdapter metrics = (MetricsFilterHttpServerAdapter)
+                ((FilterHttpServerTransport) getHttpServerTransport("server1")).filter("metrics");
+        HttpClientResponse response = httpClient("server1", "user", "Passw0rd").request("POST", "test/msg/_bulk",
+                "{\"index\":{\"_id\":\"1\"}}\n{\"message\":\"test\"}\n".getBytes(Charsets.UTF_8));
+        assertThat(response.errorCode(), equalTo(200));
+        response = httpClient("server1").request("POST", "test/_search", createSearchQuery("*:*"));
+        assertThat(response.errorCode(), equalTo(200));
+
+        // Requests are recorded after the response is sent
+        for (int i = 0; i < 50 && metrics.endpointMetrics(POST, "/test/_search").count() < 1; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(metrics.endpointMetrics(POST, "/test/_search").count(), equalTo(1L));
+        // Streamed bulk requests bypass the filter chain
+        assertThat(metrics.endpointMetrics(POST, "/test/msg/_bulk").count(), equalTo(0L));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testMalformedActionAfterFirstChunk() throws Exception {
+        createTestIndex();
+        StringBuilder body = new StringBuilder();
+        // Larger than a single read, so the first sub-bulks are submitted before the malformed line is read
+        for (int i = 0; i < 500; i++) {
+            body.append("{\"index\":{\"_id\":\"").append(i).append("\"}}\n");
+            body.append("{\"id\":\"").append(i).append("\",\"message\":\"test\"}\n");
+        }
+        body.append("not an action\n");
+        body.append("{\"index\":{\"_id\":\"500\"}}\n{\"message\":\"test\"}\n");
+
+        HttpClientResponse response = httpClient("server1", "user", "Passw0rd")
+                .request("POST", "test/msg/_bulk?refresh=true", body.toString().getBytes(Charsets.UTF_8));
+        assertThat(response.errorCode(), equalTo(200));
+        assertThat((Boolean) response.get("errors"), equalTo(true));
+        assertThat((Integer) response.get("status"), equalTo(400));
+        assertThat(response.get("error"), notNullValue());
+        List<Map<String, Object>> items = (List<Map<String, Object>>) response.get("items");
+        assertThat(items.size(), greaterThan(0));
+        assertThat(items.size(), lessThan(501));
+        for (int i = 0; i < items.size(); i++) {
+            Map<String, Object> item = (Map<String, Object>) items.get(i).get("index");
+            assertThat((String) item.get("_id"), equalTo(Integer.toString(i)));
+            assertThat((Integer) item.get("status"), equalTo(201));
+        }
+
+        // Only the reported documents were indexed
+        response = httpClient("server1").request("GET", "test/msg/_search?q=*:*");
+        assertThat((Integer) ((Map<String, Object>) response.get("hits")).get("total"), equalTo(items.size()));
+    }
+
+    @Test
+    public void testMalformedActionInFirstChunk() throws Exception {
+        HttpClientResponse response = httpClient("server1", "user", "Passw0rd").request("POST", "test/msg/_bulk",
+                "not an action\n{\"message\":\"test\"}\n".getBytes(Charsets.UTF_8));
+        assertThat(response.errorCode(), equalTo(400));
+    }
+
+    @Test
+    public void testEmptyBulk() throws Exception {
+        HttpClientResponse response = httpClient("server1", "user", "Passw0rd")
+                .request("POST", "_bulk", "\n\n".getBytes(Charsets.UTF_8));
+        assertThat(response.errorCode(), equalTo(400));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty.compress;
+
+import com.sonian.elasticsearch.http.jetty.AbstractJettyHttpServerTests;
+import com.sonian.elasticsearch.http.jetty.HttpClientResponse;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class ResponseCompressionTests extends AbstractJettyHttpServerTests {
+
+    @BeforeMethod
+    public void startNodes() {
+        putDefaultSettings(ImmutableSettings.settingsBuilder()
+                // Replaces jetty GzipHandler
+                .put("sonian.elasticsearch.http.jetty.config", "jetty.xml,jetty-hash-auth.xml,jetty-restrict-writes.xml")
+                .put("sonian.elasticsearch.http.jetty.compression.enabled", true)
+                .put("sonian.elasticsearch.http.jetty.compression.min_size", "1kb")
+                .putArray("sonian.elasticsearch.http.jetty.compression.exclude", "GET /_cluster/state", "/_nodes/{nodeId}"));
+        startNode("server1");
+    }
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testLargeResponseIsCompressed() throws Exception {
+        HttpURLConnection connection = open("_nodes?pretty", "gzip, deflate");
+        try {
+            assertThat(connection.getResponseCode(), equalTo(200));
+            assertThat(connection.getHeaderField("Content-Encoding"), equalTo("gzip"));
+            assertThat(connection.getHeaderField("Vary"), equalTo("Accept-Encoding"));
+            byte[] body = Streams.copyToByteArray(new GZIPInputStream(connection.getInputStream()));
+            Map<String, Object> response = XContentHelper.convertToMap(body, false).v2();
+            assertThat(response.get("nodes"), notNullValue());
+        } finally {
+            connection.disconnect();
+        }
+
+        HttpClientResponse stats = httpClient("server1").request("_jetty/stats");
+        Map<String, Object> compression = (Map<String, Object>) stats.get("compression");
+        assertThat(((Number) compression.get("compressed_responses")).longValue(), equalTo(1L));
+        assertThat(((Number) compression.get("bytes_saved")).longValue(), greaterThan(0L));
+    }
+
+    @Test
+    public void testResponsesThatAreNotCompressed() throws Exception {
+        // Too small
+        assertNotCompressed(open("_cluster/health", "gzip"));
+        // Client doesn't accept gzip
+        assertNotCompressed(open("_nodes?pretty", null));
+        // Excluded endpoints
+        assertNotCompressed(open("_cluster/state?pretty", "gzip"));
+        assertNotCompressed(open("_nodes/_local?pretty", "gzip"));
+    }
+
+    @Test
+    public void testAcceptsGzip() {
+        assertThat(ResponseCompressor.acceptsGzip("gzip"), equalTo(true));
+        assertThat(ResponseCompressor.acceptsGzip("deflate, GZIP;q=0.5"), equalTo(true));
+        assertThat(ResponseCompressor.acceptsGzip("gzip;q=0"), equalTo(false));
+        assertThat(ResponseCompressor.acceptsGzip("deflate"), equalTo(false));
+        assertThat(ResponseCompressor.acceptsGzip(null), equalTo(false));
+    }
+
+    private void assertNotCompressed(HttpURLConnection connection) throws Exception {
+        try {
+            assertThat(connection.getResponseCode(), equalTo(200));
+            assertThat(connection.getHeaderField("Content-Encoding"), nullValue());
+            InputStream in = connection.getInputStream();
+            XContentHelper.convertToMap(Streams.copyToByteArray(in), false);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String path, String acceptEncoding) throws Exception {
+        InetSocketAddress address = ((InetSocketTransportAddress) getHttpServerTransport("server1").boundAddress().publishAddress()).address();
+        URL url = new URL("http", address.getHostName(), address.getPort(), "/" + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (acceptEncoding != null) {
+            connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        return connection;
+    }
+}
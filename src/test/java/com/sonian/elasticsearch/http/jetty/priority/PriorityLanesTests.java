@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011 Sonian Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sonian.elasticsearch.http.jetty.priority;
+
+import com.sonian.elasticsearch.http.jetty.AbstractJettyHttpServerTests;
+import com.sonian.elasticsearch.http.jetty.HttpClient;
+import com.sonian.elasticsearch.http.jetty.HttpClientResponse;
+import com.sonian.elasticsearch.http.jetty.JettyHttpServerTransport;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * @author imotov
+ */
+public class PriorityLanesTests extends AbstractJettyHttpServerTests {
+
+    @AfterMethod
+    public void closeNodes() {
+        closeAllNodes();
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testHighPriorityLaneStaysResponsive() throws Exception {
+        startNode("server1", settingsBuilder()
+                .put("sonian.elasticsearch.http.jetty.priority.enabled", true)
+                .putArray("sonian.elasticsearch.http.jetty.priority.lanes.slow.path", "/_cluster/health")
+                .put("sonian.elasticsearch.http.jetty.priority.lanes.slow.method", "GET")
+                .put("sonian.elasticsearch.http.jetty.priority.lanes.slow.size", 1)
+                .put("sonian.elasticsearch.http.jetty.priority.lanes.slow.queue_size", 1)
+                .putArray("sonian.elasticsearch.http.jetty.priority.lanes.admin.path", "/_nodes", "/_jetty/stats")
+                .put("sonian.elasticsearch.http.jetty.priority.lanes.admin.method", "GET")
+                .put("sonian.elasticsearch.http.jetty.priority.lanes.admin.size", 1));
+        final HttpClient httpClient = httpClient("server1");
+        PriorityLane slowLane = ((JettyHttpServerTransport) getHttpServerTransport("server1")).priorityLanes().lane("slow");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<HttpClientResponse> slowRequest = new Callable<HttpClientResponse>() {
+                @Override
+                public HttpClientResponse call() throws Exception {
+                    return httpClient.request("_cluster/health?wait_for_nodes=5&timeout=2s");
+                }
+            };
+            // The first request occupies the only thread of the lane and the second one waits in the queue
+            Future<HttpClientResponse> running = executor.submit(slowRequest);
+            for (int i = 0; i < 50 && slowLane.active() == 0; i++) {
+                Thread.sleep(100);
+            }
+            Future<HttpClientResponse> queued = executor.submit(slowRequest);
+            for (int i = 0; i < 50 && slowLane.queue() == 0; i++) {
+                Thread.sleep(100);
+            }
+
+            HttpURLConnection connection = connect("/_cluster/health", null);
+            try {
+                assertThat(connection.getResponseCode(), equalTo(429));
+                assertThat(connection.getHeaderField("Retry-After"), equalTo("1"));
+            } finally {
+                connection.disconnect();
+            }
+
+            // Other lanes are not affected
+            long start = System.currentTimeMillis();
+            assertThat(responseCode("/_nodes", null), equalTo(200));
+            assertThat(responseCode("/_cluster/health", "admin"), equalTo(200));
+            assertThat(System.currentTimeMillis() - start, lessThan(1500L));
+
+            assertThat((Boolean) running.get().get("timed_out"), equalTo(true));
+            assertThat((Boolean) queued.get().get("timed_out"), equalTo(true));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Lane threads finish their tasks after the responses are sent
+        awaitLane(slowLane);
+        awaitLane(((JettyHttpServerTransport) getHttpServerTransport("server1")).priorityLanes().lane("admin"));
+        HttpClientResponse response = httpClient.request("_jetty/stats");
+        Map<String, Object> lanes = (Map<String, Object>) response.get("lanes");
+        Map<String, Object> slow = (Map<String, Object>) lanes.get("slow");
+        assertThat((Integer) slow.get("rejected"), equalTo(1));
+        // Both lanes also completed the task of awaitLane
+        assertThat((Integer) slow.get("completed"), equalTo(3));
+        Map<String, Object> admin = (Map<String, Object>) lanes.get("admin");
+        assertThat((Integer) admin.get("completed"), equalTo(3));
+        assertThat(lanes.containsKey("default"), equalTo(true));
+    }
+
+    /**
+     * Waits until the tasks that were submitted to the lane are completed. The lanes of the test have a
+     * single thread, so a task submitted after them runs once they are done.
+     */
+    private void awaitLane(PriorityLane lane) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        assertThat(lane.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }), equalTo(true));
+        assertThat(latch.await(10, TimeUnit.SECONDS), equalTo(true));
+    }
+
+    private int responseCode(String path, String priority) throws Exception {
+        HttpURLConnection connection = connect(path, priority);
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection connect(String path, String priority) throws Exception {
+        InetSocketAddress address = ((InetSocketTransportAddress) getHttpServerTransport("server1").boundAddress().publishAddress()).address();
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", address.getHostName(), address.getPort(), path).openConnection();
+        if (priority != null) {
+            connection.setRequestProperty("X-Priority", priority);
+        }
+        return connection;
+    }
+}